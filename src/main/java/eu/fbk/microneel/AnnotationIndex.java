@@ -0,0 +1,255 @@
+package eu.fbk.microneel;
+
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Preconditions;
+
+import eu.fbk.microneel.Post.Annotation;
+
+/**
+ * An ordered index of non-overlapping annotations, used by {@link Post} to store its annotations.
+ * <p>
+ * Annotations are kept in a sorted array, ordered by begin index. As annotations cannot overlap,
+ * their end indexes are sorted as well, so that the annotation covering a character, the
+ * annotations overlapping a span of text and the position where to insert a new annotation can
+ * all be located via binary search in O(log n) time, while insertion and removal only require
+ * shifting part of the array. The index is exposed as an unmodifiable {@code List} (and its
+ * {@link #subList(int, int)} views), whereas modifications are performed via package-private
+ * methods.
+ * </p>
+ *
+ * @param <T>
+ *            the type of annotation stored
+ */
+final class AnnotationIndex<T extends Annotation> extends AbstractList<T>
+        implements RandomAccess, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Annotation[] EMPTY = new Annotation[0];
+
+    private Annotation[] elements;
+
+    private int size;
+
+    AnnotationIndex() {
+        this.elements = EMPTY;
+        this.size = 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public T get(final int index) {
+        Preconditions.checkElementIndex(index, this.size);
+        return (T) this.elements[index];
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public void forEach(final Consumer<? super T> action) {
+        final int expectedModCount = this.modCount;
+        for (int i = 0; this.modCount == expectedModCount && i < this.size; ++i) {
+            action.accept((T) this.elements[i]);
+        }
+        if (this.modCount != expectedModCount) {
+            throw new ConcurrentModificationException();
+        }
+    }
+
+    @Override
+    public int indexOf(final Object object) {
+        if (object instanceof Annotation) {
+            final Annotation annotation = (Annotation) object;
+            final int beginIndex = annotation.getBeginIndex();
+            for (int i = lowerBound(beginIndex); i < this.size
+                    && this.elements[i].getBeginIndex() == beginIndex; ++i) {
+                if (this.elements[i].equals(annotation)) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public int lastIndexOf(final Object object) {
+        return indexOf(object); // an annotation cannot be indexed twice
+    }
+
+    @Override
+    public boolean contains(final Object object) {
+        return indexOf(object) >= 0;
+    }
+
+    /**
+     * Returns the annotation covering the character at the index specified, if any.
+     *
+     * @param charIndex
+     *            the character index in the post text
+     * @return the annotation covering the character, or null if none
+     */
+    @SuppressWarnings("unchecked")
+    @Nullable
+    T find(final int charIndex) {
+        final int i = lowerBound(charIndex + 1) - 1;
+        return i >= 0 && this.elements[i].getEndIndex() > charIndex ? (T) this.elements[i] : null;
+    }
+
+    /**
+     * Returns a view of the annotations overlapping the span of text specified.
+     *
+     * @param beginIndex
+     *            the begin index of the span, inclusive
+     * @param endIndex
+     *            the end index of the span, exclusive
+     * @return a view over the overlapping annotations, sorted by begin index
+     */
+    List<T> findOverlapping(final int beginIndex, final int endIndex) {
+        final int from = upperBoundEnd(beginIndex);
+        final int to = Math.max(from, lowerBound(endIndex));
+        return subList(from, to);
+    }
+
+    /**
+     * Inserts the annotation specified, keeping the index sorted.
+     *
+     * @param annotation
+     *            the annotation to insert
+     * @throws IllegalArgumentException
+     *             if the annotation overlaps with an annotation already in the index
+     */
+    void insert(final T annotation) {
+        final int beginIndex = annotation.getBeginIndex();
+        final int endIndex = annotation.getEndIndex();
+        final int pos = upperBound(beginIndex);
+        final Annotation before = pos > 0 ? this.elements[pos - 1] : null;
+        final Annotation after = pos < this.size ? this.elements[pos] : null;
+        if (before != null && before.getEndIndex() > beginIndex
+                || after != null && after.getBeginIndex() < endIndex) {
+            throw new IllegalArgumentException("Annotation already overlapping with interval "
+                    + beginIndex + "," + endIndex + ": " + (before != null
+                            && before.getEndIndex() > beginIndex ? before : after));
+        }
+        if (this.size == this.elements.length) {
+            this.elements = Arrays.copyOf(this.elements, Math.max(4, this.size * 2));
+        }
+        System.arraycopy(this.elements, pos, this.elements, pos + 1, this.size - pos);
+        this.elements[pos] = annotation;
+        ++this.size;
+        ++this.modCount;
+    }
+
+    /**
+     * Deletes the annotation specified, if indexed.
+     *
+     * @param annotation
+     *            the annotation to delete
+     * @return true if the annotation was found and deleted
+     */
+    boolean delete(final Object annotation) {
+        final int pos = indexOf(annotation);
+        if (pos < 0) {
+            return false;
+        }
+        System.arraycopy(this.elements, pos + 1, this.elements, pos, this.size - pos - 1);
+        this.elements[--this.size] = null;
+        ++this.modCount;
+        return true;
+    }
+
+    /**
+     * Deletes all the annotations matching the predicate specified.
+     *
+     * @param predicate
+     *            the predicate selecting the annotations to delete
+     * @return true if at least an annotation was deleted
+     */
+    @SuppressWarnings("unchecked")
+    boolean deleteIf(final Predicate<? super T> predicate) {
+        int count = 0;
+        for (int i = 0; i < this.size; ++i) {
+            final Annotation annotation = this.elements[i];
+            if (!predicate.test((T) annotation)) {
+                this.elements[count++] = annotation;
+            }
+        }
+        if (count == this.size) {
+            return false;
+        }
+        Arrays.fill(this.elements, count, this.size, null);
+        this.size = count;
+        ++this.modCount;
+        return true;
+    }
+
+    /**
+     * Deletes all the annotations in the index.
+     */
+    void deleteAll() {
+        if (this.size > 0) {
+            Arrays.fill(this.elements, 0, this.size, null);
+            this.size = 0;
+            ++this.modCount;
+        }
+    }
+
+    // index of the first annotation with begin index >= the one specified
+    private int lowerBound(final int beginIndex) {
+        int low = 0;
+        int high = this.size;
+        while (low < high) {
+            final int mid = low + high >>> 1;
+            if (this.elements[mid].getBeginIndex() < beginIndex) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // index of the first annotation with begin index > the one specified
+    private int upperBound(final int beginIndex) {
+        int low = 0;
+        int high = this.size;
+        while (low < high) {
+            final int mid = low + high >>> 1;
+            if (this.elements[mid].getBeginIndex() <= beginIndex) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // index of the first annotation with end index > the one specified
+    private int upperBoundEnd(final int endIndex) {
+        int low = 0;
+        int high = this.size;
+        while (low < high) {
+            final int mid = low + high >>> 1;
+            if (this.elements[mid].getEndIndex() <= endIndex) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+}
@@ -0,0 +1,502 @@
+package eu.fbk.microneel;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Ordering;
+
+import eu.fbk.microneel.Post.Annotation;
+import eu.fbk.microneel.Post.Field;
+import eu.fbk.microneel.Post.HashtagAnnotation;
+import eu.fbk.microneel.Post.MentionAnnotation;
+import eu.fbk.microneel.Post.UrlAnnotation;
+
+/**
+ * Encoder and decoder for the compact binary representation of posts.
+ * <p>
+ * A binary post file consists of one or more segments, each one starting with a header (a zero
+ * byte followed by {@link #MAGIC}) and followed by a sequence of records, each one prefixed by its
+ * length (as a non-zero varint). Repeated strings (author data, mention data and hashtag data) are
+ * stored using a per-segment dictionary that is populated incrementally: a string is written in
+ * full the first time it is used and is then referenced via its numeric dictionary ID. The
+ * dictionary is bounded: once full, the writer starts a new segment with an empty dictionary, so
+ * that the memory of writer and reader stays small, while strings exceeding the bound within a
+ * record are written in full. Annotations are stored using varint offsets relative to the end of
+ * the previous annotation, and the text of each annotation is not stored, being derived from the
+ * post text. Decoding a record requires having decoded all previous records in the same segment,
+ * so that the dictionary is known.
+ * </p>
+ * <p>
+ * The codec also supports an external dictionary mode, used by {@link PostStore}, where strings
+ * are always referenced by ID and the dictionary is stored separately, so that each record can
+ * be decoded independently of the others.
+ * </p>
+ */
+final class BinaryPostCodec {
+
+    static final byte[] MAGIC = new byte[] { 'M', 'N', 'P', 'B', 1 };
+
+    private static final int ALL_FIELDS = Post.toMask(EnumSet.allOf(Field.class));
+
+    private static final int MAX_DICTIONARY_SIZE = 1 << 16;
+
+    private static final int FLAG_TWITTER_ID = 0x01;
+
+    private static final int FLAG_DATE = 0x02;
+
+    private static final int TYPE_MENTION = 0;
+
+    private static final int TYPE_HASHTAG = 1;
+
+    private static final int TYPE_URL = 2;
+
+    private static final int STRING_NULL = 0;
+
+    private static final int STRING_LITERAL = 1;
+
+    private static final int STRING_DEFINITION = 2;
+
+    private static final int STRING_REFERENCE = 3; // first ID of dictionary references
+
+    private static final String TWITTER_PREFIX = "twitter:";
+
+    private static final String[] COMPRESSION_EXTENSIONS = new String[] { ".gz", ".bz2", ".xz",
+            ".lz4", ".7z", ".Z" };
+
+    private BinaryPostCodec() {
+    }
+
+    /**
+     * Checks whether the file specified uses the binary format, based on its extension. Binary
+     * files end with {@code .bin}, possibly followed by a compression extension (e.g.,
+     * {@code .bin.gz}).
+     *
+     * @param path
+     *            the path of the file
+     * @return true, if the binary format has to be used for the file
+     */
+    static boolean isBinary(final Path path) {
+        String name = path.getFileName().toString();
+        for (final String extension : COMPRESSION_EXTENSIONS) {
+            if (name.endsWith(extension)) {
+                name = name.substring(0, name.length() - extension.length());
+                break;
+            }
+        }
+        return name.endsWith(".bin");
+    }
+
+    /**
+     * Checks whether the file specified is compressed, based on its extension.
+     *
+     * @param path
+     *            the path of the file
+     * @return true, if the file name ends with a supported compression extension
+     */
+    static boolean isCompressed(final Path path) {
+        final String name = path.getFileName().toString();
+        for (final String extension : COMPRESSION_EXTENSIONS) {
+            if (name.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static final class Encoder {
+
+        private final Map<String, Integer> dictionary;
+
+        @Nullable
+        private final List<String> externalDictionary;
+
+        private byte[] buffer;
+
+        private int length;
+
+        /**
+         * Creates a new encoder.
+         *
+         * @param externalDictionary
+         *            true if dictionary strings have to be collected and made available via
+         *            {@link #getDictionary()} rather than being written inline in records
+         */
+        Encoder(final boolean externalDictionary) {
+            this.dictionary = new HashMap<>();
+            this.externalDictionary = externalDictionary ? new ArrayList<>() : null;
+            this.buffer = new byte[4096];
+            this.length = 0;
+        }
+
+        /**
+         * Clears the dictionary, so that subsequent records can be decoded independently of the
+         * records encoded so far. To be called when starting a new segment.
+         */
+        void reset() {
+            this.dictionary.clear();
+            if (this.externalDictionary != null) {
+                this.externalDictionary.clear();
+            }
+        }
+
+        /**
+         * Checks whether the (non-external) dictionary is full, so that a new segment should be
+         * started before encoding further records.
+         *
+         * @return true if the dictionary is full
+         */
+        boolean isDictionaryFull() {
+            return this.externalDictionary == null
+                    && this.dictionary.size() >= MAX_DICTIONARY_SIZE;
+        }
+
+        /**
+         * Returns the dictionary strings, indexed by their IDs, in external dictionary mode.
+         *
+         * @return the dictionary strings
+         */
+        List<String> getDictionary() {
+            Preconditions.checkState(this.externalDictionary != null);
+            return this.externalDictionary;
+        }
+
+        /**
+         * Encodes the post specified, returning the number of bytes of the encoded record, which
+         * are available via {@link #getBuffer()} until the next call.
+         *
+         * @param post
+         *            the post to encode
+         * @return the length of the encoded record
+         */
+        int encode(final Post post) {
+
+            // Encode flags and ID, using a numeric representation for (canonical) Twitter IDs
+            this.length = 0;
+            final long twitterId = post.getTwitterIdAsLong();
+            final boolean isTwitterId = twitterId >= 0;
+            final Date date = post.getDate();
+            writeByte((isTwitterId ? FLAG_TWITTER_ID : 0) | (date != null ? FLAG_DATE : 0));
+            if (isTwitterId) {
+                writeVarint(twitterId);
+            } else {
+                writeLiteral(post.getId());
+            }
+
+            // Encode date, text and author data
+            if (date != null) {
+                writeVarint(zigzag(date.getTime() / 1000));
+            }
+            writeLiteral(post.getText());
+            writeString(post.getAuthorUsername());
+            writeString(post.getAuthorFullName());
+            writeString(post.getAuthorDescription());
+            writeString(post.getAuthorUri());
+
+            // Encode annotations, relying on them being sorted
+            final List<Annotation> annotations = post.getAnnotations();
+            writeVarint(annotations.size());
+            int offset = 0;
+            for (final Annotation annotation : annotations) {
+                if (annotation instanceof MentionAnnotation) {
+                    writeByte(TYPE_MENTION);
+                } else if (annotation instanceof HashtagAnnotation) {
+                    writeByte(TYPE_HASHTAG);
+                } else {
+                    writeByte(TYPE_URL);
+                }
+                writeVarint(zigzag(annotation.getBeginIndex() - offset));
+                writeVarint(annotation.getEndIndex() - annotation.getBeginIndex());
+                offset = annotation.getEndIndex();
+                if (annotation instanceof MentionAnnotation) {
+                    final MentionAnnotation m = (MentionAnnotation) annotation;
+                    writeString(m.getUsername());
+                    writeString(m.getFullName());
+                    writeString(m.getDescription());
+                    writeString(m.getUri());
+                } else if (annotation instanceof HashtagAnnotation) {
+                    final HashtagAnnotation h = (HashtagAnnotation) annotation;
+                    writeString(h.getHashtag());
+                    writeString(h.getTokenization());
+                    final Set<String> definitions = h.getDefinitions();
+                    writeVarint(definitions == null ? 0 : definitions.size() + 1);
+                    if (definitions != null) {
+                        for (final String definition : Ordering.natural()
+                                .sortedCopy(definitions)) {
+                            writeString(definition);
+                        }
+                    }
+                } else {
+                    final UrlAnnotation u = (UrlAnnotation) annotation;
+                    writeLiteral(u.getResolvedUrl());
+                    writeLiteral(u.getTitle());
+                }
+            }
+            return this.length;
+        }
+
+        /**
+         * Returns the buffer containing the last encoded record, starting at offset 0.
+         *
+         * @return the buffer
+         */
+        byte[] getBuffer() {
+            return this.buffer;
+        }
+
+        private void writeString(@Nullable final String string) {
+            if (string == null) {
+                writeVarint(STRING_NULL);
+            } else {
+                final Integer id = this.dictionary.get(string);
+                if (id != null) {
+                    writeVarint(STRING_REFERENCE + id);
+                } else if (this.externalDictionary != null) {
+                    this.dictionary.put(string, this.externalDictionary.size());
+                    writeVarint(STRING_REFERENCE + this.externalDictionary.size());
+                    this.externalDictionary.add(string);
+                } else if (this.dictionary.size() < MAX_DICTIONARY_SIZE) {
+                    this.dictionary.put(string, this.dictionary.size());
+                    writeVarint(STRING_DEFINITION);
+                    writeUTF8(string);
+                } else {
+                    writeVarint(STRING_LITERAL);
+                    writeUTF8(string);
+                }
+            }
+        }
+
+        private void writeLiteral(@Nullable final String string) {
+            if (string == null) {
+                writeVarint(STRING_NULL);
+            } else {
+                writeVarint(STRING_LITERAL);
+                writeUTF8(string);
+            }
+        }
+
+        private void writeUTF8(final String string) {
+            final byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            writeVarint(bytes.length);
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, this.buffer, this.length, bytes.length);
+            this.length += bytes.length;
+        }
+
+        private void writeVarint(long value) {
+            ensureCapacity(10);
+            while ((value & ~0x7FL) != 0) {
+                this.buffer[this.length++] = (byte) (value & 0x7F | 0x80);
+                value >>>= 7;
+            }
+            this.buffer[this.length++] = (byte) value;
+        }
+
+        private void writeByte(final int value) {
+            ensureCapacity(1);
+            this.buffer[this.length++] = (byte) value;
+        }
+
+        private void ensureCapacity(final int bytesToWrite) {
+            if (this.length + bytesToWrite > this.buffer.length) {
+                this.buffer = Arrays.copyOf(this.buffer,
+                        Math.max(this.buffer.length * 2, this.length + bytesToWrite));
+            }
+        }
+
+    }
+
+    static final class Decoder {
+
+        private final List<String> dictionary;
+
+        Decoder() {
+            this.dictionary = new ArrayList<>();
+        }
+
+        /**
+         * Creates a decoder using the external dictionary specified.
+         *
+         * @param dictionary
+         *            the dictionary strings, indexed by their IDs
+         */
+        Decoder(final List<String> dictionary) {
+            this.dictionary = dictionary;
+        }
+
+        /**
+         * Clears the dictionary. To be called when starting a new segment.
+         */
+        void reset() {
+            this.dictionary.clear();
+        }
+
+        /**
+         * Decodes a post from the record in the buffer specified, starting at its current
+         * position. On return, the buffer position is moved after the record.
+         *
+         * @param buffer
+         *            the buffer containing the record
+         * @return the decoded post
+         */
+        Post decode(final ByteBuffer buffer) {
+            return decode(buffer, ALL_FIELDS);
+        }
+
+        /**
+         * Decodes a post from the record in the buffer specified, starting at its current
+         * position and decoding only the fields specified. Strings of other fields are skipped
+         * and never instantiated, unless required to populate the dictionary. On return, the
+         * buffer position is moved after the record.
+         *
+         * @param buffer
+         *            the buffer containing the record
+         * @param fields
+         *            the bitmask of the {@link Field}s to decode
+         * @return the decoded post
+         */
+        Post decode(final ByteBuffer buffer, final int fields) {
+
+            // Decode flags and ID
+            final int flags = buffer.get();
+            final String id = (flags & FLAG_TWITTER_ID) != 0
+                    ? TWITTER_PREFIX + Long.toString(readVarint(buffer))
+                    : readString(buffer, true);
+            final Post post = new Post(id);
+
+            // Decode date, text and author data
+            if ((flags & FLAG_DATE) != 0) {
+                final long seconds = unzigzag(readVarint(buffer));
+                if ((fields & Field.DATE.mask) != 0) {
+                    post.setDate(new Date(seconds * 1000));
+                }
+            }
+            post.setText(readString(buffer, (fields & Field.TEXT.mask) != 0));
+            final boolean author = (fields & Field.AUTHOR.mask) != 0;
+            post.setAuthorUsername(readString(buffer, author));
+            post.setAuthorFullName(readString(buffer, author));
+            post.setAuthorDescription(readString(buffer, author));
+            post.setAuthorUri(readString(buffer, author));
+
+            // Decode annotations
+            final int numAnnotations = (int) readVarint(buffer);
+            int offset = 0;
+            for (int i = 0; i < numAnnotations; ++i) {
+                final int type = buffer.get();
+                final int begin = offset + (int) unzigzag(readVarint(buffer));
+                final int end = begin + (int) readVarint(buffer);
+                offset = end;
+                Annotation annotation = null;
+                if (type == TYPE_MENTION) {
+                    final boolean decode = (fields & Field.MENTIONS.mask) != 0;
+                    final String username = readString(buffer, decode);
+                    final String fullName = readString(buffer, decode);
+                    final String description = readString(buffer, decode);
+                    final String uri = readString(buffer, decode);
+                    if (decode) {
+                        annotation = post.new MentionAnnotation(begin, end, username, fullName,
+                                description, uri);
+                    }
+                } else if (type == TYPE_HASHTAG) {
+                    final boolean decode = (fields & Field.HASHTAGS.mask) != 0;
+                    final String hashtag = readString(buffer, decode);
+                    final String tokenization = readString(buffer, decode);
+                    final int numDefinitions = (int) readVarint(buffer) - 1;
+                    List<String> definitions = null;
+                    if (numDefinitions >= 0) {
+                        definitions = new ArrayList<>(numDefinitions);
+                        for (int j = 0; j < numDefinitions; ++j) {
+                            definitions.add(readString(buffer, decode));
+                        }
+                    }
+                    if (decode) {
+                        annotation = post.new HashtagAnnotation(begin, end, hashtag,
+                                tokenization, definitions);
+                    }
+                } else if (type == TYPE_URL) {
+                    final boolean decode = (fields & Field.URLS.mask) != 0;
+                    final String resolvedUrl = readString(buffer, decode);
+                    final String title = readString(buffer, decode);
+                    if (decode) {
+                        annotation = post.new UrlAnnotation(begin, end, resolvedUrl, title);
+                    }
+                } else {
+                    throw new IllegalArgumentException(
+                            "Invalid annotation type " + type + " in post " + id);
+                }
+                if (annotation != null) {
+                    post.addAnnotation(annotation);
+                }
+            }
+            return post;
+        }
+
+        @Nullable
+        private String readString(final ByteBuffer buffer, final boolean decode) {
+            final int code = (int) readVarint(buffer);
+            if (code == STRING_NULL) {
+                return null;
+            } else if (code == STRING_LITERAL) {
+                if (decode) {
+                    return readUTF8(buffer);
+                }
+                final int length = (int) readVarint(buffer);
+                buffer.position(buffer.position() + length);
+                return null;
+            } else if (code == STRING_DEFINITION) {
+                final String string = readUTF8(buffer);
+                this.dictionary.add(string);
+                return decode ? string : null;
+            } else {
+                return decode ? this.dictionary.get(code - STRING_REFERENCE) : null;
+            }
+        }
+
+        static String readUTF8(final ByteBuffer buffer) {
+            final int length = (int) readVarint(buffer);
+            final String string;
+            if (buffer.hasArray()) {
+                string = new String(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                        length, StandardCharsets.UTF_8);
+                buffer.position(buffer.position() + length);
+            } else {
+                final byte[] bytes = new byte[length];
+                buffer.get(bytes);
+                string = new String(bytes, StandardCharsets.UTF_8);
+            }
+            return string;
+        }
+
+    }
+
+    static long readVarint(final ByteBuffer buffer) {
+        long result = 0;
+        for (int shift = 0;; shift += 7) {
+            final byte b = buffer.get();
+            result |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return result;
+            }
+        }
+    }
+
+    private static long zigzag(final long value) {
+        return value << 1 ^ value >> 63;
+    }
+
+    private static long unzigzag(final long value) {
+        return value >>> 1 ^ -(value & 1);
+    }
+
+}
@@ -0,0 +1,192 @@
+package eu.fbk.microneel;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.Properties;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * The progress of an enrichment run, periodically saved to a file so that an interrupted run can
+ * be resumed.
+ * <p>
+ * A checkpoint records the number of input posts enriched and written, the ID of the last of them
+ * and the length of the output file after writing them, as returned by {@link PostWriter#sync()}.
+ * As posts are written in input order, this identifies exactly the posts already processed: a run
+ * is resumed by truncating the output to the recorded length and appending to it (see
+ * {@link PostWriter#open(Path, long)}), and by skipping the recorded number of input posts (see
+ * {@link #skip(Iterator)}), so that no post is enriched twice and no partially written post is
+ * kept. The checkpoint file is a small properties file, replaced atomically at each update so that
+ * it is never left in an inconsistent state. Instances are immutable.
+ * </p>
+ */
+public final class Checkpoint {
+
+    private static final String NUM_POSTS = "posts";
+
+    private static final String LAST_POST_ID = "lastPostId";
+
+    private static final String OUTPUT_LENGTH = "outputLength";
+
+    private static final Checkpoint EMPTY = new Checkpoint(0L, null, 0L);
+
+    private final long numPosts;
+
+    @Nullable
+    private final String lastPostId;
+
+    private final long outputLength;
+
+    private Checkpoint(final long numPosts, @Nullable final String lastPostId,
+            final long outputLength) {
+        this.numPosts = numPosts;
+        this.lastPostId = lastPostId;
+        this.outputLength = outputLength;
+    }
+
+    /**
+     * Returns the checkpoint of a run that has not processed any post yet.
+     *
+     * @return the initial checkpoint
+     */
+    public static Checkpoint empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Reads the checkpoint stored in the file specified.
+     *
+     * @param path
+     *            the checkpoint file
+     * @return the read checkpoint
+     * @throws IOException
+     *             on failure, including the case the file does not exist or is invalid
+     */
+    public static Checkpoint read(final Path path) throws IOException {
+        final Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(path)) {
+            properties.load(in);
+        }
+        try {
+            final long numPosts = Long.parseLong(properties.getProperty(NUM_POSTS));
+            final long outputLength = Long.parseLong(properties.getProperty(OUTPUT_LENGTH));
+            final String lastPostId = properties.getProperty(LAST_POST_ID);
+            Preconditions.checkArgument(numPosts >= 0 && outputLength >= 0);
+            Preconditions.checkArgument(numPosts == 0 || lastPostId != null);
+            return numPosts == 0 && outputLength == 0 ? EMPTY
+                    : new Checkpoint(numPosts, lastPostId, outputLength);
+        } catch (final RuntimeException ex) {
+            throw new IOException("Invalid checkpoint file " + path, ex);
+        }
+    }
+
+    /**
+     * Stores this checkpoint in the file specified, atomically replacing its previous content.
+     *
+     * @param path
+     *            the checkpoint file
+     * @throws IOException
+     *             on failure
+     */
+    public void write(final Path path) throws IOException {
+        final Properties properties = new Properties();
+        properties.setProperty(NUM_POSTS, Long.toString(this.numPosts));
+        properties.setProperty(OUTPUT_LENGTH, Long.toString(this.outputLength));
+        if (this.lastPostId != null) {
+            properties.setProperty(LAST_POST_ID, this.lastPostId);
+        }
+        final Path tmpPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(tmpPath)) {
+            properties.store(out, "microneel enrichment checkpoint");
+        }
+        Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Returns a new checkpoint recording the processing of additional posts.
+     *
+     * @param numNewPosts
+     *            the number of posts processed since this checkpoint
+     * @param lastPostId
+     *            the ID of the last post processed
+     * @param outputLength
+     *            the length of the output file after writing the processed posts
+     * @return the new checkpoint
+     */
+    public Checkpoint advance(final long numNewPosts, final String lastPostId,
+            final long outputLength) {
+        Preconditions.checkArgument(numNewPosts >= 0, "Invalid number of posts %s", numNewPosts);
+        Preconditions.checkArgument(outputLength >= 0, "Invalid output length %s", outputLength);
+        return new Checkpoint(this.numPosts + numNewPosts, Preconditions.checkNotNull(lastPostId),
+                outputLength);
+    }
+
+    /**
+     * Skips the posts already processed from the source specified, checking that the source is
+     * consistent with this checkpoint.
+     *
+     * @param source
+     *            the source of input posts, positioned at its beginning
+     * @throws IOException
+     *             if the source has less posts than recorded or the ID of the last skipped post
+     *             does not match the recorded one, meaning the input changed since the checkpoint
+     */
+    public void skip(final Iterator<Post> source) throws IOException {
+        String id = null;
+        for (long i = 0; i < this.numPosts; ++i) {
+            if (!source.hasNext()) {
+                throw new IOException("Input has only " + i + " posts, while checkpoint refers "
+                        + "to " + this.numPosts + " posts already processed");
+            }
+            id = source.next().getId();
+        }
+        if (!Objects.equals(id, this.lastPostId)) {
+            throw new IOException("Input does not match checkpoint: expected post "
+                    + this.lastPostId + " at position " + this.numPosts + ", found " + id);
+        }
+    }
+
+    /**
+     * Returns the number of input posts processed.
+     *
+     * @return the number of posts processed
+     */
+    public long getNumPosts() {
+        return this.numPosts;
+    }
+
+    /**
+     * Returns the ID of the last input post processed.
+     *
+     * @return the last post ID, or null if no post was processed
+     */
+    @Nullable
+    public String getLastPostId() {
+        return this.lastPostId;
+    }
+
+    /**
+     * Returns the length of the output file after writing the processed posts.
+     *
+     * @return the output length in bytes
+     */
+    public long getOutputLength() {
+        return this.outputLength;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "(" + this.numPosts + " posts, last " + this.lastPostId
+                + ", " + this.outputLength + " output bytes)";
+    }
+
+}
@@ -1,54 +1,191 @@
 package eu.fbk.microneel;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.Reader;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Properties;
+import java.util.Queue;
+import java.util.ServiceLoader;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.annotation.Nullable;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.Closer;
+import com.google.common.primitives.Ints;
 import com.google.common.primitives.Longs;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
 
+import eu.fbk.microneel.Post.Annotation;
+import eu.fbk.microneel.Post.Field;
 import eu.fbk.microneel.Post.HashtagAnnotation;
 import eu.fbk.microneel.Post.MentionAnnotation;
 import eu.fbk.microneel.Post.UrlAnnotation;
+import eu.fbk.microneel.util.Batcher;
+import eu.fbk.microneel.util.DiskCache;
+import eu.fbk.microneel.util.EntityScanner;
+import eu.fbk.microneel.util.HashtagSegmenter;
+import eu.fbk.microneel.util.LongHashMap;
+import eu.fbk.microneel.util.LongHashSet;
+import eu.fbk.microneel.util.LongLongHashMap;
+import eu.fbk.microneel.util.StringPool;
 import eu.fbk.microneel.util.TwitterBuilder;
 import eu.fbk.utils.core.CommandLine;
+import eu.fbk.utils.core.IO;
 import twitter4j.HashtagEntity;
 import twitter4j.Status;
 import twitter4j.Twitter;
 import twitter4j.TwitterException;
+import twitter4j.TwitterObjectFactory;
 import twitter4j.URLEntity;
 import twitter4j.User;
 import twitter4j.UserMentionEntity;
 
-public abstract class Enricher {
+public abstract class Enricher implements Closeable {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(Enricher.class);
 
+    private static final Set<Field> ALL_FIELDS = Sets.immutableEnumSet(EnumSet.allOf(Field.class));
+
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("microneel-enricher-%d")
+                    .build());
+
+    @Nullable
+    private static Map<String, EnricherFactory> factories;
+
     public void enrich(final Post post) throws Throwable {
         enrich(ImmutableList.of(post));
     }
 
     public abstract void enrich(Iterable<Post> posts) throws Throwable;
 
+    /**
+     * Adds to the plan specified the API calls this enricher would perform to enrich the posts
+     * specified, without enriching them. Posts may be supplied a window at a time. The default
+     * implementation adds nothing, as appropriate for enrichers not calling rate-limited APIs.
+     *
+     * @param posts
+     *            the posts to plan the enrichment of
+     * @param plan
+     *            the plan to populate
+     * @throws IOException
+     *             on failure
+     */
+    public void plan(final Iterable<Post> posts, final EnrichmentPlan plan) throws IOException {
+        // do nothing
+    }
+
+    /**
+     * Returns the post fields read by this enricher. Together with {@link #getWrittenFields()},
+     * this allows {@link #concat(Enricher...)} to run independent enrichers concurrently. An
+     * enricher reading only some annotation fields must access annotations only via type-specific
+     * methods (e.g., {@link Post#getAnnotations(Class)}). The default implementation returns all
+     * the fields.
+     *
+     * @return the fields read, not null
+     */
+    public Set<Field> getReadFields() {
+        return ALL_FIELDS;
+    }
+
+    /**
+     * Returns the post fields written by this enricher. As overlapping annotations are rejected by
+     * {@link Post#addAnnotation(Class, int, int)}, an enricher adding annotations should declare as
+     * written all the annotation fields whose annotations may overlap the added ones. The default
+     * implementation returns all the fields.
+     *
+     * @return the fields written, not null
+     */
+    public Set<Field> getWrittenFields() {
+        return ALL_FIELDS;
+    }
+
+    /**
+     * {@inheritDoc} Releases the resources held by this enricher (e.g., caches and threads). The
+     * default implementation does nothing.
+     */
+    @Override
+    public void close() throws IOException {
+        // do nothing
+    }
+
     public static Enricher concat(final Enricher... enrichers) {
         if (enrichers.length == 0) {
             return createNullEnricher();
@@ -64,7 +201,40 @@ public abstract class Enricher {
     }
 
     public static Enricher createTwitterApiEnricher(final Twitter twitter) {
-        return new TwitterApiEnricher(Objects.requireNonNull(twitter));
+        return createTwitterApiEnricher(twitter, new Properties(), null);
+    }
+
+    public static Enricher createTwitterApiEnricher(final Twitter twitter,
+            final Properties properties, @Nullable String prefix) {
+        prefix = Strings.isNullOrEmpty(prefix) ? "" : prefix.endsWith(".") ? prefix : prefix + ".";
+        try {
+            return new TwitterApiEnricher(Objects.requireNonNull(twitter), properties, prefix);
+        } catch (final IOException ex) {
+            throw Throwables.propagate(ex);
+        }
+    }
+
+    public static Enricher createEntityEnricher() {
+        return EntityEnricher.INSTANCE;
+    }
+
+    public static Enricher createHashtagSegmentationEnricher(final Properties properties)
+            throws IOException {
+        return new HashtagSegmentationEnricher(properties);
+    }
+
+    public static Enricher createHashtagDefinitionEnricher(final Properties properties)
+            throws IOException {
+        return new HashtagDefinitionEnricher(properties);
+    }
+
+    public static Enricher createUrlEnricher(final Properties properties) {
+        return new UrlEnricher(properties);
+    }
+
+    public static Enricher createTwitterArchiveEnricher(final Properties properties)
+            throws IOException {
+        return new TwitterArchiveEnricher(properties);
     }
 
     public static Enricher create(final Properties properties, String prefix) {
@@ -75,20 +245,69 @@ public abstract class Enricher {
         // Build a list of enrichers to be later combined
         final List<Enricher> enrichers = new ArrayList<>();
 
-        // Retrieve the types of enrichers enabled in the configuration
+        // Retrieve the types of enrichers enabled in the configuration, in order
         final Set<String> types = ImmutableSet
-                .copyOf(properties.getProperty(prefix + "type", "").split("\\s+"));
+                .copyOf(properties.getProperty(prefix + "type", "").trim().split("\\s+"));
 
-        // Add an enricher adding triples about certain URIs, possibly recursively
-        if (types.contains("api")) {
-            enrichers.add(createTwitterApiEnricher(
-                    new TwitterBuilder().setProperties(properties, prefix + "api.").build()));
+        // Create an enricher for each type via the registered factories, supplying them their
+        // configuration subtree and wrapping enrichers based on their declared capabilities
+        final Map<String, EnricherFactory> factories = getFactories();
+        for (final String type : types) {
+            if (type.isEmpty()) {
+                continue;
+            }
+            final EnricherFactory factory = factories.get(type);
+            if (factory == null) {
+                throw new IllegalArgumentException("Unknown enricher type '" + type
+                        + "' (available: " + Joiner.on(", ").join(factories.keySet()) + ")");
+            }
+            final Properties subtree = new Properties();
+            final String typePrefix = prefix + type + ".";
+            for (final String name : properties.stringPropertyNames()) {
+                if (name.startsWith(typePrefix)) {
+                    subtree.setProperty(name.substring(typePrefix.length()),
+                            properties.getProperty(name));
+                }
+            }
+            Enricher enricher;
+            try {
+                enricher = factory.create(subtree);
+            } catch (final IOException ex) {
+                throw Throwables.propagate(ex);
+            }
+            if (!factory.isConcurrent()) {
+                enricher = new SynchronizedEnricher(enricher);
+            } else if (!factory.isBatching()) {
+                enricher = new SplittingEnricher(enricher);
+            }
+            enrichers.add(enricher);
         }
 
         // Combine the enrichers
         return concat(enrichers.toArray(new Enricher[enrichers.size()]));
     }
 
+    /**
+     * Returns the enricher factories registered via {@link ServiceLoader}, indexed by type.
+     *
+     * @return an immutable map from type names to factories
+     */
+    public static synchronized Map<String, EnricherFactory> getFactories() {
+        if (factories == null) {
+            final Map<String, EnricherFactory> map = new LinkedHashMap<>();
+            for (final EnricherFactory factory : ServiceLoader.load(EnricherFactory.class)) {
+                final EnricherFactory oldFactory = map.put(factory.getType(), factory);
+                if (oldFactory != null) {
+                    LOGGER.warn("Enricher type '{}' registered by both {} and {}: using the latter",
+                            factory.getType(), oldFactory.getClass().getName(),
+                            factory.getClass().getName());
+                }
+            }
+            factories = ImmutableMap.copyOf(map);
+        }
+        return factories;
+    }
+
     public static void main(final String... args) {
         try {
             // Parse command line
@@ -107,6 +326,41 @@ public abstract class Enricher {
                     .withOption("o", "output",
                             "specifies the output FILE populated with the enriched tweets", "FILE",
                             CommandLine.Type.FILE, true, false, true)
+                    .withOption("w", "window",
+                            "specifies the number N of posts read, enriched and written at a time "
+                                    + "(default: 100)",
+                            "N", CommandLine.Type.POSITIVE_INTEGER, true, false, false)
+                    .withOption("p", "parallelism",
+                            "specifies the number N of windows enriched concurrently "
+                                    + "(default: 16)",
+                            "N", CommandLine.Type.POSITIVE_INTEGER, true, false, false)
+                    .withOption("t", "threads",
+                            "specifies the number N of threads used for parsing input posts "
+                                    + "(default: number of processors)",
+                            "N", CommandLine.Type.POSITIVE_INTEGER, true, false, false)
+                    .withOption(null, "checkpoint",
+                            "specifies the checkpoint FILE where to periodically record progress "
+                                    + "(default: output file + .checkpoint)",
+                            "FILE", CommandLine.Type.FILE, true, false, false)
+                    .withOption(null, "checkpoint-interval",
+                            "specifies the number N of posts written between checkpoints "
+                                    + "(default: 10000)",
+                            "N", CommandLine.Type.POSITIVE_INTEGER, true, false, false)
+                    .withOption(null, "resume",
+                            "resumes an interrupted run based on the checkpoint file, skipping "
+                                    + "already enriched posts and appending to the output file")
+                    .withOption(null, "retry",
+                            "retries the lookups dead-lettered in FILE by a previous run: only "
+                                    + "the input posts affected by them are enriched, while the "
+                                    + "others are copied unchanged (supply the previous output "
+                                    + "as input)",
+                            "FILE", CommandLine.Type.FILE_EXISTING, true, false, false)
+                    .withOption(null, "plan",
+                            "reports the API calls planned to enrich the input, and an estimate "
+                                    + "of the time needed, before enriching it")
+                    .withOption(null, "plan-only",
+                            "reports the API calls planned to enrich the input, and an estimate "
+                                    + "of the time needed, without enriching it")
                     .withLogger(LoggerFactory.getLogger("eu.fbk")).parse(args);
 
             // Read options
@@ -116,6 +370,18 @@ public abstract class Enricher {
                     "enricher.");
             final Path inputPath = cmd.getOptionValue("i", Path.class);
             final Path outputPath = cmd.getOptionValue("o", Path.class);
+            final int window = cmd.getOptionValue("w", Integer.class, 100);
+            final int parallelism = cmd.getOptionValue("p", Integer.class, 16);
+            final int threads = cmd.getOptionValue("t", Integer.class,
+                    Runtime.getRuntime().availableProcessors());
+            final Path checkpointPath = cmd.getOptionValue("checkpoint", Path.class,
+                    outputPath.resolveSibling(outputPath.getFileName() + ".checkpoint"));
+            final int checkpointInterval = cmd.getOptionValue("checkpoint-interval",
+                    Integer.class, 10000);
+            final boolean resume = cmd.hasOption("resume");
+            final Path retryPath = cmd.getOptionValue("retry", Path.class);
+            final boolean plan = cmd.hasOption("plan");
+            final boolean planOnly = cmd.hasOption("plan-only");
 
             // Read configuration
             final Properties config = new Properties();
@@ -125,21 +391,64 @@ public abstract class Enricher {
                 LOGGER.info("Loaded configuration from {}", configFile);
             }
 
-            // Create the enricher based on the supplied configuration
-            final Enricher enricher = Enricher.create(config, configPrefix);
-            LOGGER.info("Configured {}", enricher);
+            // Read the checkpoint of the run to resume, if any
+            final boolean resumable = PostWriter.isResumable(outputPath);
+            Checkpoint checkpoint = Checkpoint.empty();
+            if (resume && !resumable) {
+                throw new IllegalArgumentException("Cannot resume writing " + outputPath
+                        + ": only uncompressed and .gz outputs are supported");
+            } else if (resume && Files.exists(checkpointPath)) {
+                checkpoint = Checkpoint.read(checkpointPath);
+                LOGGER.info("Resuming from {} in {}", checkpoint, checkpointPath);
+            } else if (resume) {
+                LOGGER.warn("Checkpoint file {} not found: starting from scratch",
+                        checkpointPath);
+            }
+
+            // Read the lookups to retry, if any, before the enricher appends to their file
+            final Predicate<Post> retryFilter = retryPath == null ? null
+                    : TwitterApiEnricher.readDeadLetters(retryPath);
 
-            // Read posts
-            final List<Post> posts = Post.read(inputPath);
-            LOGGER.info("Read {} posts from {}", posts.size(), inputPath);
+            // Create the enricher based on the supplied configuration, restricting it to the
+            // posts to retry, if any
+            final Enricher configuredEnricher = Enricher.create(config, configPrefix);
+            try (Enricher enricher = retryFilter == null ? configuredEnricher
+                    : new FilteringEnricher(configuredEnricher, retryFilter)) {
+                LOGGER.info("Configured {}", enricher);
 
-            // Perform the enrichment
-            enricher.enrich(posts);
-            LOGGER.info("Enriched {} posts", posts.size());
+                // If requested, scan the input to plan and report the API calls to perform
+                if (plan || planOnly) {
+                    final EnrichmentPlan enrichmentPlan = new EnrichmentPlan();
+                    try (PostReader reader = PostReader.open(inputPath, threads)) {
+                        checkpoint.skip(reader);
+                        for (final Iterator<List<Post>> i = Iterators.partition(reader,
+                                window); i.hasNext();) {
+                            final List<Post> posts = i.next();
+                            enricher.plan(posts, enrichmentPlan);
+                            enrichmentPlan.addPosts(posts.size());
+                        }
+                    }
+                    LOGGER.info("Planned enrichment: {}", enrichmentPlan);
+                }
 
-            // Write results
-            Post.write(outputPath, posts);
-            LOGGER.info("Written {} posts to {}", posts.size(), outputPath);
+                // Stream posts through a reader -> enricher -> writer pipeline, so to work in
+                // bounded memory; posts already processed according to the checkpoint are
+                // skipped, appending to previous output
+                if (!planOnly) {
+                    final long numPosts;
+                    try (PostReader reader = PostReader.open(inputPath, threads);
+                            PostWriter writer = !resumable ? PostWriter.open(outputPath)
+                                    : PostWriter.open(outputPath, checkpoint.getOutputLength())) {
+                        checkpoint.skip(reader);
+                        numPosts = Pipeline.run(reader, enricher, writer, window, parallelism,
+                                checkpoint, resumable ? checkpointPath : null,
+                                checkpointInterval);
+                    }
+                    LOGGER.info("Written {} posts from {} to {} ({} skipped)", numPosts,
+                            inputPath, outputPath, checkpoint.getNumPosts());
+                }
+            }
+            LOGGER.info("Shared profile strings: {}", StringPool.getDefault());
             LOGGER.info("Done in {} ms", System.currentTimeMillis() - ts);
 
         } catch (final Throwable ex) {
@@ -152,177 +461,1932 @@ public abstract class Enricher {
 
         private final Enricher[] enrichers;
 
+        private final int[][] dependencies;
+
+        private final boolean sequential;
+
         ConcatEnricher(final Enricher[] enrichers) {
+
+            // Build the dependency DAG: an enricher depends on a previous one if it reads or
+            // writes a field written by the previous one, or writes a field the previous reads
+            final int n = enrichers.length;
+            final int[] readMasks = new int[n];
+            final int[] writeMasks = new int[n];
+            for (int i = 0; i < n; ++i) {
+                readMasks[i] = mask(enrichers[i].getReadFields());
+                writeMasks[i] = mask(enrichers[i].getWrittenFields());
+            }
+            boolean sequential = true;
             this.enrichers = enrichers;
+            this.dependencies = new int[n][];
+            for (int j = 0; j < n; ++j) {
+                final int[] deps = new int[j];
+                int numDeps = 0;
+                for (int i = 0; i < j; ++i) {
+                    if ((writeMasks[i] & (readMasks[j] | writeMasks[j])) != 0
+                            || (readMasks[i] & writeMasks[j]) != 0) {
+                        deps[numDeps++] = i;
+                    }
+                }
+                this.dependencies[j] = Arrays.copyOf(deps, numDeps);
+                sequential &= j == 0 || numDeps > 0 && deps[numDeps - 1] == j - 1;
+            }
+            this.sequential = sequential; // true if the DAG is a chain (no concurrency possible)
         }
 
         @Override
         public void enrich(final Iterable<Post> posts) throws Throwable {
+
+            // Run enrichers in the calling thread if they all depend on the previous one
+            if (this.sequential) {
+                for (final Enricher enricher : this.enrichers) {
+                    enricher.enrich(posts);
+                }
+                return;
+            }
+
+            // Otherwise, run each enricher as soon as the enrichers it depends on completed
+            final int n = this.enrichers.length;
+            final CompletableFuture<?>[] futures = new CompletableFuture<?>[n];
+            for (int j = 0; j < n; ++j) {
+                final Enricher enricher = this.enrichers[j];
+                final int[] indexes = this.dependencies[j];
+                final CompletableFuture<?>[] deps = new CompletableFuture<?>[indexes.length];
+                for (int k = 0; k < deps.length; ++k) {
+                    deps[k] = futures[indexes[k]];
+                }
+                futures[j] = CompletableFuture.allOf(deps).thenRunAsync(() -> {
+                    try {
+                        enricher.enrich(posts);
+                    } catch (final Throwable ex) {
+                        throw new CompletionException(ex);
+                    }
+                }, EXECUTOR);
+            }
+            try {
+                CompletableFuture.allOf(futures).get();
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Operation interrupted", ex);
+            } catch (final ExecutionException ex) {
+                throw ex.getCause();
+            }
+        }
+
+        @Override
+        public void plan(final Iterable<Post> posts, final EnrichmentPlan plan)
+                throws IOException {
+            for (final Enricher enricher : this.enrichers) {
+                enricher.plan(posts, plan);
+            }
+        }
+
+        @Override
+        public Set<Field> getReadFields() {
+            final Set<Field> fields = EnumSet.noneOf(Field.class);
+            for (final Enricher enricher : this.enrichers) {
+                fields.addAll(enricher.getReadFields());
+            }
+            return fields;
+        }
+
+        @Override
+        public Set<Field> getWrittenFields() {
+            final Set<Field> fields = EnumSet.noneOf(Field.class);
+            for (final Enricher enricher : this.enrichers) {
+                fields.addAll(enricher.getWrittenFields());
+            }
+            return fields;
+        }
+
+        @Override
+        public void close() throws IOException {
+            final Closer closer = Closer.create();
             for (final Enricher enricher : this.enrichers) {
-                enricher.enrich(posts);
+                closer.register(enricher);
             }
+            closer.close();
+        }
+
+        private static int mask(final Set<Field> fields) {
+            int mask = 0;
+            for (final Field field : fields) {
+                mask |= field.mask; // unlike Post.toMask(), annotations don't imply text
+            }
+            return mask;
         }
 
         @Override
         public String toString() {
-            return getClass().getSimpleName() + "(" + Joiner.on(", ").join(this.enrichers) + ")";
+            final StringBuilder builder = new StringBuilder();
+            builder.append(getClass().getSimpleName()).append("(");
+            for (int j = 0; j < this.enrichers.length; ++j) {
+                builder.append(j == 0 ? "" : ", ").append(this.enrichers[j]);
+                if (!this.sequential && this.dependencies[j].length > 0) {
+                    builder.append(" after #");
+                    builder.append(Joiner.on(", #").join(Ints.asList(this.dependencies[j])));
+                }
+            }
+            return builder.append(")").toString();
         }
 
     }
 
-    private static class NullEnricher extends Enricher {
+    private abstract static class ForwardingEnricher extends Enricher {
 
-        static final NullEnricher INSTANCE = new NullEnricher();
+        final Enricher delegate;
+
+        ForwardingEnricher(final Enricher delegate) {
+            this.delegate = Objects.requireNonNull(delegate);
+        }
 
         @Override
-        public void enrich(final Iterable<Post> posts) throws Throwable {
-            // do nothing
+        public void plan(final Iterable<Post> posts, final EnrichmentPlan plan)
+                throws IOException {
+            this.delegate.plan(posts, plan);
+        }
+
+        @Override
+        public Set<Field> getReadFields() {
+            return this.delegate.getReadFields();
+        }
+
+        @Override
+        public Set<Field> getWrittenFields() {
+            return this.delegate.getWrittenFields();
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.delegate.close();
         }
 
         @Override
         public String toString() {
-            return getClass().getSimpleName();
+            return this.delegate.toString();
         }
 
     }
 
-    private static class TwitterApiEnricher extends Enricher {
+    private static class FilteringEnricher extends ForwardingEnricher {
 
-        private final Twitter twitter;
+        private final Predicate<Post> filter;
 
-        TwitterApiEnricher(final Twitter twitter) {
-            this.twitter = twitter;
+        FilteringEnricher(final Enricher delegate, final Predicate<Post> filter) {
+            super(delegate);
+            this.filter = Objects.requireNonNull(filter);
         }
 
         @Override
-        public void enrich(final Iterable<Post> posts) throws TwitterException {
-            enrichViaStatusLookup(posts);
-            enrichViaUserLookup(posts);
+        public void plan(final Iterable<Post> posts, final EnrichmentPlan plan)
+                throws IOException {
+            this.delegate.plan(select(posts), plan);
         }
 
-        private void enrichViaStatusLookup(final Iterable<Post> posts) throws TwitterException {
+        @Override
+        public void enrich(final Iterable<Post> posts) throws Throwable {
+            final List<Post> selected = select(posts);
+            if (!selected.isEmpty()) {
+                this.delegate.enrich(selected);
+            }
+        }
 
-            // Collect the IDs of the statuses that is possible & useful to gather from Twitter
-            final Set<Long> ids = new HashSet<>();
+        private List<Post> select(final Iterable<Post> posts) {
+            final List<Post> selected = new ArrayList<>();
             for (final Post post : posts) {
-                final Long id = post.getTwitterId();
-                if (id != null && (post.getDate() == null || post.getText() == null
-                        || post.getAuthorUsername() == null || post.getAuthorFullName() == null
-                        || post.getAuthorDescription() == null
-                        || post.getAnnotations(MentionAnnotation.class).stream()
-                                .anyMatch(a -> a.getFullName() == null))) {
-                    ids.add(id);
+                if (this.filter.test(post)) {
+                    selected.add(post);
                 }
             }
+            return selected;
+        }
 
-            // Gather statuses in batches of 100 (most efficient way)
-            final Map<Long, Status> statuses = new HashMap<>();
-            for (final List<Long> batch : Iterables.partition(ids, 100)) {
-                for (final Status status : this.twitter.lookup(Longs.toArray(batch))) {
-                    statuses.put(status.getId(), status);
-                }
+        @Override
+        public String toString() {
+            return getClass().getSimpleName() + "(" + this.delegate + ")";
+        }
+
+    }
+
+    private static class SynchronizedEnricher extends ForwardingEnricher {
+
+        SynchronizedEnricher(final Enricher delegate) {
+            super(delegate);
+        }
+
+        @Override
+        public void enrich(final Iterable<Post> posts) throws Throwable {
+            synchronized (this.delegate) {
+                this.delegate.enrich(posts);
             }
+        }
 
-            // Use retrieved status data to enrich posts
-            for (final Post post : posts) {
-                final Status status = statuses.get(post.getTwitterId());
-                if (status != null) {
-                    // Enrich post date and text
-                    if (post.getDate() == null) {
-                        post.setDate(status.getCreatedAt());
-                    }
-                    if (post.getText() == null) {
-                        post.setText(status.getText());
-                    }
+    }
 
-                    // Enrich post author
-                    final User user = status.getUser();
-                    if (user != null) {
-                        if (post.getAuthorUsername() == null) {
-                            post.setAuthorUsername(user.getScreenName());
-                        }
-                        if (post.getAuthorFullName() == null) {
-                            post.setAuthorFullName(user.getName());
-                        }
-                        if (post.getAuthorDescription() == null) {
-                            post.setAuthorDescription(user.getDescription());
-                        }
-                    }
+    private static class SplittingEnricher extends ForwardingEnricher {
 
-                    // Enrich mention / hashtag / url annotations
-                    for (final UserMentionEntity e : status.getUserMentionEntities()) {
-                        final MentionAnnotation m = post.addAnnotation(MentionAnnotation.class,
-                                e.getStart(), e.getEnd());
-                        if (m.getFullName() == null) {
-                            m.setFullName(e.getName());
-                        }
-                    }
-                    for (final HashtagEntity e : status.getHashtagEntities()) {
-                        post.addAnnotation(HashtagAnnotation.class, e.getStart(), e.getEnd());
-                    }
-                    for (final URLEntity e : status.getURLEntities()) {
-                        post.addAnnotation(UrlAnnotation.class, e.getStart(), e.getEnd());
+        private static final int MIN_CHUNK_SIZE = 16;
+
+        private static final int NUM_PROCESSORS = Runtime.getRuntime().availableProcessors();
+
+        // Bounded, as windows may be already enriched concurrently by the caller (e.g., Pipeline)
+        private static final ExecutorService SPLIT_EXECUTOR = Executors.newFixedThreadPool(
+                NUM_PROCESSORS, new ThreadFactoryBuilder().setDaemon(true)
+                        .setNameFormat("microneel-splitter-%d").build());
+
+        SplittingEnricher(final Enricher delegate) {
+            super(delegate);
+        }
+
+        @Override
+        public void enrich(final Iterable<Post> posts) throws Throwable {
+
+            // Split the posts in chunks, one per processor, unless too few
+            final List<Post> list = posts instanceof List<?> ? (List<Post>) posts
+                    : ImmutableList.copyOf(posts);
+            final int numChunks = Math.min(NUM_PROCESSORS, list.size() / MIN_CHUNK_SIZE);
+            if (numChunks <= 1) {
+                this.delegate.enrich(list);
+                return;
+            }
+
+            // Enrich chunks in the calling thread and in pooled helpers, each one taking the next
+            // chunk not yet taken: if the pool is busy with other windows, the calling thread
+            // ends up enriching most chunks instead of waiting for queued helpers
+            final List<List<Post>> chunks = Lists.partition(list,
+                    (list.size() + numChunks - 1) / numChunks);
+            final AtomicInteger nextChunk = new AtomicInteger();
+            final List<CompletableFuture<?>> futures = new ArrayList<>(chunks.size() - 1);
+            for (int i = 1; i < chunks.size(); ++i) {
+                futures.add(CompletableFuture.runAsync(() -> {
+                    try {
+                        enrich(chunks, nextChunk);
+                    } catch (final Throwable ex) {
+                        throw new CompletionException(ex);
                     }
-                }
+                }, SPLIT_EXECUTOR));
+            }
+            enrich(chunks, nextChunk);
+            try {
+                CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()]))
+                        .get();
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Operation interrupted", ex);
+            } catch (final ExecutionException ex) {
+                throw ex.getCause();
             }
         }
 
-        private void enrichViaUserLookup(final Iterable<Post> posts) throws TwitterException {
+        private void enrich(final List<List<Post>> chunks, final AtomicInteger nextChunk)
+                throws Throwable {
+            for (int i = nextChunk.getAndIncrement(); i < chunks.size(); i = nextChunk
+                    .getAndIncrement()) {
+                this.delegate.enrich(chunks.get(i));
+            }
+        }
 
-            // Collect the usernames of the users that is possible & useful to gather from Twitter
-            final Set<String> usernames = new HashSet<>();
+    }
+
+    private static class NullEnricher extends Enricher {
+
+        static final NullEnricher INSTANCE = new NullEnricher();
+
+        @Override
+        public void enrich(final Iterable<Post> posts) throws Throwable {
+            // do nothing
+        }
+
+        @Override
+        public Set<Field> getReadFields() {
+            return ImmutableSet.of();
+        }
+
+        @Override
+        public Set<Field> getWrittenFields() {
+            return ImmutableSet.of();
+        }
+
+        @Override
+        public String toString() {
+            return getClass().getSimpleName();
+        }
+
+    }
+
+    /**
+     * Enricher adding the mention, hashtag and URL annotations found by {@link EntityScanner} in
+     * post texts, without calling any API. Entities overlapping different existing annotations
+     * are skipped, so that entities from the Twitter API and local ones can be combined.
+     */
+    private static class EntityEnricher extends Enricher {
+
+        static final EntityEnricher INSTANCE = new EntityEnricher();
+
+        private static final Set<Field> READ_FIELDS = Sets.immutableEnumSet(Field.TEXT,
+                Field.MENTIONS, Field.HASHTAGS, Field.URLS);
+
+        private static final Set<Field> WRITTEN_FIELDS = Sets.immutableEnumSet(Field.MENTIONS,
+                Field.HASHTAGS, Field.URLS);
+
+        // Annotation classes indexed by EntityScanner.Type ordinal
+        private static final List<Class<? extends Annotation>> ANNOTATION_CLASSES = ImmutableList
+                .of(MentionAnnotation.class, HashtagAnnotation.class, UrlAnnotation.class);
+
+        @Override
+        public void enrich(final Iterable<Post> posts) {
             for (final Post post : posts) {
-                if (post.getAuthorUsername() != null && (post.getAuthorFullName() == null
-                        || post.getAuthorDescription() == null)) {
-                    usernames.add(post.getAuthorUsername());
-                }
-                for (final MentionAnnotation m : post.getAnnotations(MentionAnnotation.class)) {
-                    if (m.getFullName() == null || m.getDescription() == null) {
-                        usernames.add(m.getUsername());
-                    }
+                final String text = post.getText();
+                if (text != null) {
+                    EntityScanner.scan(text, (type, begin, end) -> TwitterApiEnricher.addEntity(
+                            post, ANNOTATION_CLASSES.get(type.ordinal()), begin, end, false));
                 }
             }
+        }
 
-            // Gather statuses in batches of 100 (most efficient way)
-            final Map<String, User> users = new HashMap<>();
-            for (final List<String> batch : Iterables.partition(usernames, 100)) {
-                for (final User user : this.twitter
-                        .lookupUsers(batch.toArray(new String[batch.size()]))) {
-                    users.put(user.getScreenName(), user);
-                }
-            }
+        @Override
+        public Set<Field> getReadFields() {
+            return READ_FIELDS;
+        }
 
-            // Use retrieved user data to enrich posts
-            for (final Post post : posts) {
-                // Enrich the post author
-                final User author = users.get(post.getAuthorUsername());
-                if (author != null) {
-                    if (post.getAuthorFullName() == null) {
-                        post.setAuthorFullName(author.getName());
-                    }
-                    if (post.getAuthorDescription() == null) {
-                        post.setAuthorDescription(author.getDescription());
+        @Override
+        public Set<Field> getWrittenFields() {
+            return WRITTEN_FIELDS;
+        }
+
+        @Override
+        public String toString() {
+            return getClass().getSimpleName();
+        }
+
+    }
+
+    /**
+     * Enricher filling the tokenization of hashtag annotations via a {@link HashtagSegmenter},
+     * whose dictionary is loaded once per JVM. Segmentations are memoized per hashtag, as the
+     * same hashtags recur in many posts.
+     */
+    private static class HashtagSegmentationEnricher extends Enricher {
+
+        private static final Set<Field> FIELDS = Sets.immutableEnumSet(Field.HASHTAGS);
+
+        private final HashtagSegmenter segmenter;
+
+        private final Cache<String, String> cache;
+
+        HashtagSegmentationEnricher(final Properties properties) throws IOException {
+
+            // Read configuration
+            final String dictionary = properties.getProperty("dictionary", "").trim();
+            final int cacheSize = Integer.parseInt(properties.getProperty("cacheSize", "100000"));
+            Preconditions.checkArgument(!dictionary.isEmpty(), "No dictionary specified");
+            Preconditions.checkArgument(cacheSize >= 0, "Invalid cache size %s", cacheSize);
+
+            // Initialize the enricher
+            final long ts = System.currentTimeMillis();
+            this.segmenter = HashtagSegmenter.forDictionary(Paths.get(dictionary));
+            this.cache = CacheBuilder.newBuilder().maximumSize(cacheSize)
+                    .concurrencyLevel(Runtime.getRuntime().availableProcessors())
+                    .recordStats().build();
+            LOGGER.info("Using {} from {} ({} ms)", this.segmenter, dictionary,
+                    System.currentTimeMillis() - ts);
+        }
+
+        @Override
+        public void enrich(final Iterable<Post> posts) {
+            final Consumer<HashtagAnnotation> tokenizer = h -> {
+                if (h.getTokenization() == null) {
+                    final String hashtag = h.getHashtag();
+                    String tokenization = this.cache.getIfPresent(hashtag);
+                    if (tokenization == null) {
+                        tokenization = this.segmenter.segment(hashtag);
+                        this.cache.put(hashtag, tokenization);
                     }
+                    h.setTokenization(tokenization);
                 }
+            };
+            for (final Post post : posts) {
+                post.forEachHashtag(tokenizer);
+            }
+        }
 
-                // Enrich mention annotations
-                for (final MentionAnnotation m : post.getAnnotations(MentionAnnotation.class)) {
-                    final User user = users.get(m.getUsername());
-                    if (user != null) {
-                        if (m.getFullName() == null) {
-                            m.setFullName(user.getName());
-                        }
-                        if (m.getDescription() == null) {
-                            m.setDescription(user.getDescription());
-                        }
+        @Override
+        public Set<Field> getReadFields() {
+            return FIELDS;
+        }
+
+        @Override
+        public Set<Field> getWrittenFields() {
+            return FIELDS;
+        }
+
+        @Override
+        public void close() throws IOException {
+            LOGGER.info("Hashtag segmentation cache: {}", this.cache.stats());
+        }
+
+        @Override
+        public String toString() {
+            return getClass().getSimpleName() + "(" + this.segmenter + ")";
+        }
+
+    }
+
+    /**
+     * Enricher filling the definitions of hashtag annotations from a memory-mapped
+     * {@link HashtagDictionary}. Looked up definitions (including missing ones) are memoized per
+     * hashtag, so that the heap used is bounded by the cache size and not by the dictionary size.
+     */
+    private static class HashtagDefinitionEnricher extends Enricher {
+
+        private static final Set<Field> FIELDS = Sets.immutableEnumSet(Field.HASHTAGS);
+
+        private final HashtagDictionary dictionary;
+
+        private final Cache<String, Set<String>> cache;
+
+        HashtagDefinitionEnricher(final Properties properties) throws IOException {
+
+            // Read configuration
+            final String file = properties.getProperty("file", "").trim();
+            final int cacheSize = Integer.parseInt(properties.getProperty("cacheSize", "100000"));
+            Preconditions.checkArgument(!file.isEmpty(), "No hashtag dictionary file specified");
+            Preconditions.checkArgument(cacheSize >= 0, "Invalid cache size %s", cacheSize);
+
+            // Initialize the enricher
+            this.dictionary = HashtagDictionary.open(Paths.get(file));
+            this.cache = CacheBuilder.newBuilder().maximumSize(cacheSize)
+                    .concurrencyLevel(Runtime.getRuntime().availableProcessors())
+                    .recordStats().build();
+        }
+
+        @Override
+        public void enrich(final Iterable<Post> posts) {
+            final Consumer<HashtagAnnotation> linker = h -> {
+                if (h.getDefinitions() == null) {
+                    final String key = h.getHashtag().toLowerCase(Locale.ROOT);
+                    Set<String> definitions = this.cache.getIfPresent(key);
+                    if (definitions == null) {
+                        definitions = this.dictionary.get(key);
+                        definitions = definitions != null ? definitions : ImmutableSet.of();
+                        this.cache.put(key, definitions);
+                    }
+                    if (!definitions.isEmpty()) {
+                        h.setDefinitions(definitions);
                     }
                 }
+            };
+            for (final Post post : posts) {
+                post.forEachHashtag(linker);
             }
         }
 
         @Override
-        public String toString() {
-            return getClass().getSimpleName() + "(" + this.twitter + ")";
+        public Set<Field> getReadFields() {
+            return FIELDS;
+        }
+
+        @Override
+        public Set<Field> getWrittenFields() {
+            return FIELDS;
+        }
+
+        @Override
+        public void close() throws IOException {
+            LOGGER.info("Hashtag definition cache: {}", this.cache.stats());
+            this.dictionary.close();
+        }
+
+        @Override
+        public String toString() {
+            return getClass().getSimpleName() + "(" + this.dictionary + ")";
+        }
+
+    }
+
+    /**
+     * Enricher resolving the URLs of URL annotations, following redirects, and extracting the
+     * titles of the HTML pages they point to. The URLs of the posts supplied to each call are
+     * resolved concurrently by a bounded thread pool, with at most a configurable number of
+     * concurrent requests per host: further requests to a busy host (e.g., {@code t.co}) are
+     * queued per host, without occupying pool threads, and each redirect is a separate request
+     * queued at the host it points to. Connections are pooled per host by the keep-alive cache of
+     * {@link HttpURLConnection}. At most a configurable number of bytes is read from each page, and
+     * resolutions (including in-progress and failed ones) are cached by URL, so that each URL is
+     * fetched once even if repeated in many posts (e.g., retweets).
+     */
+    private static class UrlEnricher extends Enricher {
+
+        private static final Set<Field> FIELDS = Sets.immutableEnumSet(Field.URLS);
+
+        private static final Pattern TITLE_PATTERN = Pattern
+                .compile("<title[^>]*>(.*?)</title>", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+        private static final Pattern CHARSET_PATTERN = Pattern
+                .compile("charset=[\"']?([-\\w.:]+)", Pattern.CASE_INSENSITIVE);
+
+        private static final Pattern ENTITY_PATTERN = Pattern
+                .compile("&(#[0-9]{1,7}|#[xX][0-9a-fA-F]{1,6}|amp|lt|gt|quot|apos|nbsp);");
+
+        private final int maxRedirects;
+
+        private final int maxBytes;
+
+        private final int connectTimeout;
+
+        private final int readTimeout;
+
+        private final int maxHostConnections;
+
+        private final String userAgent;
+
+        private final ExecutorService executor;
+
+        private final Map<String, HostQueue> hostQueues;
+
+        private final Cache<String, CompletableFuture<Resolution>> cache;
+
+        private final LongAdder numResolved;
+
+        private final LongAdder numFailed;
+
+        UrlEnricher(final Properties properties) {
+
+            // Read configuration
+            final int threads = Integer.parseInt(properties.getProperty("threads", "64"));
+            final int maxHostConnections = Integer.parseInt(
+                    properties.getProperty("maxHostConnections", "4"));
+            final int maxRedirects = Integer.parseInt(properties.getProperty("maxRedirects", "5"));
+            final int maxBytes = Integer.parseInt(properties.getProperty("maxBytes", "65536"));
+            final int connectTimeout = Integer.parseInt(
+                    properties.getProperty("connectTimeout", "5000"));
+            final int readTimeout = Integer.parseInt(
+                    properties.getProperty("readTimeout", "10000"));
+            final int cacheSize = Integer.parseInt(properties.getProperty("cacheSize", "100000"));
+            final String userAgent = properties.getProperty("userAgent",
+                    "Mozilla/5.0 (compatible; microneel)");
+            Preconditions.checkArgument(threads > 0, "Invalid number of threads %s", threads);
+            Preconditions.checkArgument(maxHostConnections > 0,
+                    "Invalid max connections per host %s", maxHostConnections);
+            Preconditions.checkArgument(maxRedirects >= 0, "Invalid max redirects %s",
+                    maxRedirects);
+            Preconditions.checkArgument(maxBytes >= 0, "Invalid max bytes %s", maxBytes);
+            Preconditions.checkArgument(connectTimeout >= 0 && readTimeout >= 0,
+                    "Invalid timeouts %s, %s", connectTimeout, readTimeout);
+            Preconditions.checkArgument(cacheSize >= 0, "Invalid cache size %s", cacheSize);
+
+            // Initialize the enricher
+            this.maxRedirects = maxRedirects;
+            this.maxBytes = maxBytes;
+            this.connectTimeout = connectTimeout;
+            this.readTimeout = readTimeout;
+            this.maxHostConnections = maxHostConnections;
+            this.userAgent = userAgent;
+            this.executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+                    .setDaemon(true).setNameFormat("microneel-url-%d").build());
+            this.hostQueues = new ConcurrentHashMap<>();
+            this.cache = CacheBuilder.newBuilder().maximumSize(cacheSize)
+                    .concurrencyLevel(Runtime.getRuntime().availableProcessors())
+                    .recordStats().build();
+            this.numResolved = new LongAdder();
+            this.numFailed = new LongAdder();
+        }
+
+        @Override
+        public void enrich(final Iterable<Post> posts) throws IOException {
+
+            // Start resolving the URLs of all the posts, sharing resolutions of repeated URLs
+            final List<UrlAnnotation> annotations = new ArrayList<>();
+            final List<CompletableFuture<Resolution>> futures = new ArrayList<>();
+            for (final Post post : posts) {
+                for (final UrlAnnotation a : post.getAnnotations(UrlAnnotation.class)) {
+                    if (a.getResolvedUrl() == null) {
+                        annotations.add(a);
+                        futures.add(resolve(a.getUrl()));
+                    }
+                }
+            }
+
+            // Wait for resolutions, filling annotations in the calling thread
+            for (int i = 0; i < annotations.size(); ++i) {
+                final Resolution resolution = await(futures.get(i));
+                if (resolution != null) {
+                    final UrlAnnotation a = annotations.get(i);
+                    a.setResolvedUrl(resolution.url);
+                    if (a.getTitle() == null) {
+                        a.setTitle(resolution.title);
+                    }
+                }
+            }
+        }
+
+        private CompletableFuture<Resolution> resolve(final String url) {
+            try {
+                return this.cache.get(url, () -> {
+                    final CompletableFuture<Resolution> future = new CompletableFuture<>();
+                    try {
+                        fetch(url, new URL(url.contains("://") ? url : "http://" + url), 0, null,
+                                future);
+                    } catch (final MalformedURLException | RuntimeException ex) {
+                        fail(url, null, ex.toString(), future);
+                    }
+                    return future;
+                });
+            } catch (final ExecutionException ex) {
+                throw Throwables.propagate(ex.getCause());
+            }
+        }
+
+        private void fetch(final String url, final URL u, final int numRedirects,
+                @Nullable final String lastUrl, final CompletableFuture<Resolution> future) {
+
+            // Stop if redirected too many times or to an unsupported protocol, returning the
+            // last URL reached as a partial resolution
+            final String protocol = u.getProtocol();
+            if (numRedirects > this.maxRedirects
+                    || !protocol.equals("http") && !protocol.equals("https")) {
+                fail(url, lastUrl, "too many redirects or unsupported protocol", future);
+                return;
+            }
+
+            // Queue a request for the URL at its host, following redirects via further requests
+            final HostQueue queue = this.hostQueues.computeIfAbsent(
+                    u.getHost().toLowerCase(Locale.ROOT), h -> new HostQueue());
+            queue.submit(new Request(url, u, numRedirects, lastUrl, future));
+        }
+
+        private void fail(final String url, @Nullable final String lastUrl, final String reason,
+                final CompletableFuture<Resolution> future) {
+            LOGGER.debug("Could not resolve {}: {}", url, reason);
+            this.numFailed.increment();
+            future.complete(lastUrl == null || lastUrl.equals(url) ? null
+                    : new Resolution(lastUrl, null));
+        }
+
+        @Nullable
+        private String readTitle(final HttpURLConnection connection) throws IOException {
+
+            // Consider only HTML pages
+            final String type = Strings.nullToEmpty(connection.getContentType());
+            if (!type.toLowerCase(Locale.ROOT).contains("html")) {
+                return null;
+            }
+
+            // Read at most the configured number of bytes, stopping at the end of the title
+            final byte[] buffer = new byte[this.maxBytes];
+            int length = 0;
+            try (InputStream in = connection.getInputStream()) {
+                while (length < buffer.length) {
+                    final int n = in.read(buffer, length, buffer.length - length);
+                    if (n < 0) {
+                        break;
+                    }
+                    length += n;
+                    if (indexOf(buffer, length, "</title>") >= 0) {
+                        break;
+                    }
+                }
+            }
+
+            // Decode the page using the charset of the Content-Type header or meta tags, if any,
+            // and extract and normalize the title
+            Matcher matcher = CHARSET_PATTERN.matcher(type);
+            if (!matcher.find()) {
+                matcher = CHARSET_PATTERN.matcher(
+                        new String(buffer, 0, length, StandardCharsets.ISO_8859_1));
+            }
+            Charset charset = StandardCharsets.UTF_8;
+            if (matcher.find(0)) {
+                try {
+                    charset = Charset.forName(matcher.group(1));
+                } catch (final IllegalArgumentException ex) {
+                    // ignore, keep UTF-8
+                }
+            }
+            matcher = TITLE_PATTERN.matcher(new String(buffer, 0, length, charset));
+            if (!matcher.find()) {
+                return null;
+            }
+            final String title = unescape(matcher.group(1)).replaceAll("\\s+", " ").trim();
+            return title.isEmpty() ? null : title;
+        }
+
+        private static void drain(final HttpURLConnection connection) {
+            // Read the remaining (small) body, if any, so that the connection can be reused
+            try (InputStream in = connection.getResponseCode() >= 400
+                    ? connection.getErrorStream() : connection.getInputStream()) {
+                final byte[] buffer = new byte[4096];
+                for (int i = 0; in != null && i < 16 && in.read(buffer) >= 0; ++i) {
+                    // discard
+                }
+            } catch (final IOException ex) {
+                // ignore, the connection will not be reused
+            }
+        }
+
+        private static int indexOf(final byte[] buffer, final int length, final String string) {
+            outer: for (int i = 0; i <= length - string.length(); ++i) {
+                for (int j = 0; j < string.length(); ++j) {
+                    if (Character.toLowerCase((char) buffer[i + j]) != string.charAt(j)) {
+                        continue outer;
+                    }
+                }
+                return i;
+            }
+            return -1;
+        }
+
+        private static String unescape(final String string) {
+            if (string.indexOf('&') < 0) {
+                return string;
+            }
+            final StringBuffer buffer = new StringBuffer();
+            final Matcher matcher = ENTITY_PATTERN.matcher(string);
+            while (matcher.find()) {
+                final String entity = matcher.group(1);
+                String replacement;
+                if (entity.charAt(0) == '#') {
+                    final int cp = entity.charAt(1) == 'x' || entity.charAt(1) == 'X'
+                            ? Integer.parseInt(entity.substring(2), 16)
+                            : Integer.parseInt(entity.substring(1));
+                    replacement = Character.isValidCodePoint(cp)
+                            ? new String(Character.toChars(cp)) : "";
+                } else {
+                    replacement = entity.equals("amp") ? "&" : entity.equals("lt") ? "<"
+                            : entity.equals("gt") ? ">" : entity.equals("quot") ? "\""
+                                    : entity.equals("apos") ? "'" : " ";
+                }
+                matcher.appendReplacement(buffer, Matcher.quoteReplacement(replacement));
+            }
+            matcher.appendTail(buffer);
+            return buffer.toString();
+        }
+
+        @Nullable
+        private static <T> T await(final CompletableFuture<T> future) throws IOException {
+            try {
+                return future.get();
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted", ex);
+            } catch (final ExecutionException ex) {
+                throw Throwables.propagate(ex.getCause());
+            }
+        }
+
+        @Override
+        public Set<Field> getReadFields() {
+            return FIELDS;
+        }
+
+        @Override
+        public Set<Field> getWrittenFields() {
+            return FIELDS;
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.executor.shutdownNow();
+            LOGGER.info("{} URLs resolved, {} failed, cache: {}", this.numResolved.sum(),
+                    this.numFailed.sum(), this.cache.stats());
+        }
+
+        @Override
+        public String toString() {
+            return getClass().getSimpleName() + "(" + this.maxHostConnections
+                    + " connections per host, " + this.maxBytes + " bytes max)";
+        }
+
+        /**
+         * The requests to a host, of which at most {@code maxHostConnections} are executed at a
+         * time by the thread pool. A request exceeding the limit is queued here, rather than
+         * blocking a pool thread, and is submitted to the pool when a running request ends.
+         */
+        private final class HostQueue {
+
+            private final Queue<Request> pending = new ArrayDeque<>();
+
+            private int numRunning;
+
+            void submit(final Request request) {
+                synchronized (this) {
+                    if (this.numRunning >= UrlEnricher.this.maxHostConnections) {
+                        this.pending.add(request);
+                        return;
+                    }
+                    ++this.numRunning;
+                }
+                execute(request);
+            }
+
+            private void execute(final Request request) {
+                try {
+                    UrlEnricher.this.executor.execute(() -> {
+                        try {
+                            request.run();
+                        } finally {
+                            final Request next;
+                            synchronized (this) {
+                                next = this.pending.poll();
+                                if (next == null) {
+                                    --this.numRunning;
+                                }
+                            }
+                            if (next != null) {
+                                execute(next); // the slot passes to the next request
+                            }
+                        }
+                    });
+                } catch (final RejectedExecutionException ex) {
+                    // Enricher closed: fail the request and the ones queued after it, so that
+                    // callers waiting for them are not blocked forever
+                    final List<Request> rejected = new ArrayList<>();
+                    rejected.add(request);
+                    synchronized (this) {
+                        rejected.addAll(this.pending);
+                        this.pending.clear();
+                        --this.numRunning;
+                    }
+                    for (final Request r : rejected) {
+                        fail(r.url, r.lastUrl, "enricher closed", r.future);
+                    }
+                }
+            }
+
+        }
+
+        /**
+         * A request for a URL reached while resolving another (original) URL, possibly via
+         * redirects. Any failure, including unchecked exceptions due to invalid URLs (e.g., a
+         * port out of range), results in an unresolved or partially resolved URL.
+         */
+        private final class Request implements Runnable {
+
+            final String url;
+
+            final URL u;
+
+            final int numRedirects;
+
+            @Nullable
+            final String lastUrl;
+
+            final CompletableFuture<Resolution> future;
+
+            Request(final String url, final URL u, final int numRedirects,
+                    @Nullable final String lastUrl, final CompletableFuture<Resolution> future) {
+                this.url = url;
+                this.u = u;
+                this.numRedirects = numRedirects;
+                this.lastUrl = lastUrl;
+                this.future = future;
+            }
+
+            @Override
+            public void run() {
+                final String currentUrl = this.u.toString();
+                try {
+                    final HttpURLConnection connection = (HttpURLConnection) this.u
+                            .openConnection();
+                    connection.setInstanceFollowRedirects(false);
+                    connection.setConnectTimeout(UrlEnricher.this.connectTimeout);
+                    connection.setReadTimeout(UrlEnricher.this.readTimeout);
+                    connection.setRequestProperty("User-Agent", UrlEnricher.this.userAgent);
+                    connection.setRequestProperty("Accept", "text/html,*/*;q=0.8");
+                    final int code = connection.getResponseCode();
+                    final String location = connection.getHeaderField("Location");
+                    if (code >= 300 && code < 400 && location != null) {
+                        drain(connection);
+                        fetch(this.url, new URL(this.u, location), this.numRedirects + 1,
+                                currentUrl, this.future);
+                        return;
+                    }
+                    final String title = code >= 200 && code < 300 ? readTitle(connection) : null;
+                    drain(connection);
+                    UrlEnricher.this.numResolved.increment();
+                    this.future.complete(new Resolution(currentUrl, title));
+                } catch (final Throwable ex) {
+                    fail(this.url, currentUrl, ex.toString(), this.future);
+                }
+            }
+
+        }
+
+        private static final class Resolution {
+
+            final String url;
+
+            @Nullable
+            final String title;
+
+            Resolution(final String url, @Nullable final String title) {
+                this.url = url;
+                this.title = title;
+            }
+
+        }
+
+    }
+
+    /**
+     * Enricher filling posts from local archives of raw Twitter API JSON (e.g., dumps of the
+     * streaming or REST APIs). Statuses and users are indexed at creation time: their raw JSON is
+     * copied to a temporary spill file, deleted on close, while only their offsets in that file are
+     * kept in memory. On a hit, the JSON is read back via a positional read and parsed via
+     * {@link TwitterObjectFactory}, so that posts are enriched exactly as done by
+     * {@link TwitterApiEnricher} but without consuming API quota.
+     */
+    private static class TwitterArchiveEnricher extends Enricher {
+
+        private static final int LENGTH_BITS = 24; // spill pointer: offset << 24 | length
+
+        private final LongLongHashMap statuses;
+
+        private final Map<String, ArchivedUser> users;
+
+        private final Path spillPath;
+
+        private final FileChannel spillChannel;
+
+        private final int numFiles;
+
+        private final LongAdder numEnriched;
+
+        private final LongAdder numSkipped;
+
+        private final LongAdder numMissed;
+
+        TwitterArchiveEnricher(final Properties properties) throws IOException {
+
+            // Read configuration
+            final String files = properties.getProperty("files", "").trim();
+            Preconditions.checkArgument(!files.isEmpty(), "No archive files specified");
+
+            // Initialize the enricher
+            this.statuses = new LongLongHashMap();
+            this.users = new HashMap<>();
+            this.numEnriched = new LongAdder();
+            this.numSkipped = new LongAdder();
+            this.numMissed = new LongAdder();
+
+            // Index the statuses and users in the archive files (directories are scanned
+            // recursively) into the spill file, keeping for each user the most recent JSON data
+            final long ts = System.currentTimeMillis();
+            final List<Path> paths = new ArrayList<>();
+            for (final String file : files.split("\\s+")) {
+                final Path path = Paths.get(file);
+                if (Files.isDirectory(path)) {
+                    try (Stream<Path> stream = Files.walk(path)) {
+                        stream.filter(Files::isRegularFile).sorted().forEach(paths::add);
+                    }
+                } else {
+                    paths.add(path);
+                }
+            }
+            this.spillPath = Files.createTempFile("microneel-archive-", ".json");
+            try {
+                try (Spill spill = new Spill(this.spillPath)) {
+                    for (final Path path : paths) {
+                        index(path, spill);
+                    }
+                }
+                this.spillChannel = FileChannel.open(this.spillPath, StandardOpenOption.READ);
+            } catch (final Throwable ex) {
+                Files.deleteIfExists(this.spillPath);
+                throw ex;
+            }
+            this.numFiles = paths.size();
+            LOGGER.info("Indexed {} statuses and {} users from {} archive files in {} ms "
+                    + "(spill file {}, {} bytes)", this.statuses.size(), this.users.size(),
+                    this.numFiles, System.currentTimeMillis() - ts, this.spillPath,
+                    this.spillChannel.size());
+        }
+
+        private void index(final Path path, final Spill spill) throws IOException {
+            try (JsonReader reader = new JsonReader(
+                    IO.utf8Reader(IO.buffer(IO.read(path.toAbsolutePath().toString()))))) {
+                reader.setLenient(true); // accept both JSON lines and JSON arrays
+                final JsonParser parser = new JsonParser();
+                for (JsonToken token = reader.peek(); token != JsonToken.END_DOCUMENT; //
+                        token = reader.peek()) {
+                    if (token == JsonToken.BEGIN_ARRAY) {
+                        reader.beginArray();
+                    } else if (token == JsonToken.END_ARRAY) {
+                        reader.endArray();
+                    } else {
+                        final JsonElement element = parser.parse(reader);
+                        if (element.isJsonObject()) {
+                            index(element.getAsJsonObject(), -1L, spill);
+                        }
+                    }
+                }
+            } catch (final JsonParseException | MalformedJsonException ex) {
+                throw new IOException("Invalid JSON in archive file " + path, ex);
+            }
+        }
+
+        private void index(final JsonObject json, final long statusId, final Spill spill)
+                throws IOException {
+            final JsonElement user = json.get("user");
+            if (user != null && user.isJsonObject() && json.has("id")) {
+                // Status: index it together with its author and retweeted / quoted statuses
+                final long id = json.get("id").getAsLong();
+                this.statuses.put(id, spill.write(json));
+                index(user.getAsJsonObject(), id, spill);
+                for (final String name : new String[] { "retweeted_status", "quoted_status" }) {
+                    final JsonElement status = json.get(name);
+                    if (status != null && status.isJsonObject()) {
+                        index(status.getAsJsonObject(), -1L, spill);
+                    }
+                }
+            } else if (json.has("screen_name")) {
+                // User: keep it if more recent than the indexed one, based on the status
+                // containing it (standalone users, e.g., from users/lookup, are the oldest)
+                final String username = TwitterApiEnricher
+                        .normalize(json.get("screen_name").getAsString());
+                final ArchivedUser archived = this.users.get(username);
+                if (archived == null || archived.statusId <= statusId) {
+                    this.users.put(username, new ArchivedUser(statusId, spill.write(json)));
+                }
+            }
+            // other messages (e.g., deletion and limit notices) are ignored
+        }
+
+        @Override
+        public void enrich(final Iterable<Post> posts) throws IOException {
+            for (final Post post : posts) {
+
+                // Skip posts already complete
+                if (TwitterApiEnricher.getMissingFields(post) == 0) {
+                    this.numSkipped.increment();
+                    continue;
+                }
+
+                // Enrich post based on archived status, if any
+                boolean enriched = false;
+                final long id = post.getTwitterIdAsLong();
+                final long status = id < 0 ? -1L : this.statuses.get(id, -1L);
+                if (status >= 0) {
+                    enriched = true;
+                    TwitterApiEnricher.applyStatus(post, parse(status, true));
+                }
+
+                // Enrich author based on archived user, if any
+                if (post.getAuthorUsername() != null && (post.getAuthorFullName() == null
+                        || post.getAuthorDescription() == null)) {
+                    final User user = getUser(post.getAuthorUsername());
+                    if (user != null) {
+                        enriched = true;
+                        TwitterApiEnricher.applyAuthor(post, user);
+                    }
+                }
+
+                // Enrich mentions based on archived users, if any
+                enriched |= enrichMentions(post);
+
+                // Update statistics
+                (enriched ? this.numEnriched : this.numMissed).increment();
+            }
+        }
+
+        private boolean enrichMentions(final Post post) throws IOException {
+            boolean enriched = false;
+            final List<MentionAnnotation> mentions = post.getAnnotations(MentionAnnotation.class);
+            for (int i = 0; i < mentions.size(); ++i) {
+                final MentionAnnotation m = mentions.get(i);
+                if (m.getFullName() == null || m.getDescription() == null) {
+                    final User user = getUser(m.getUsername());
+                    if (user != null) {
+                        enriched = true;
+                        TwitterApiEnricher.applyMention(m, user);
+                    }
+                }
+            }
+            return enriched;
+        }
+
+        @Nullable
+        private User getUser(final String username) throws IOException {
+            final ArchivedUser archived = this.users.get(TwitterApiEnricher.normalize(username));
+            return archived == null ? null : parse(archived.pointer, false);
+        }
+
+        @SuppressWarnings("unchecked")
+        private <T> T parse(final long pointer, final boolean status) throws IOException {
+            final ByteBuffer buffer = ByteBuffer.allocate((int) (pointer & (1 << LENGTH_BITS) - 1));
+            final long offset = pointer >>> LENGTH_BITS;
+            while (buffer.hasRemaining()) {
+                if (this.spillChannel.read(buffer, offset + buffer.position()) < 0) {
+                    throw new EOFException("Truncated spill file " + this.spillPath);
+                }
+            }
+            final String string = new String(buffer.array(), StandardCharsets.UTF_8);
+            try {
+                return (T) (status ? TwitterObjectFactory.createStatus(string)
+                        : TwitterObjectFactory.createUser(string));
+            } catch (final TwitterException ex) {
+                throw new IOException("Invalid archived " + (status ? "status" : "user") + ": "
+                        + string, ex);
+            }
+        }
+
+        @Override
+        public Set<Field> getReadFields() {
+            return TwitterApiEnricher.READ_FIELDS;
+        }
+
+        @Override
+        public Set<Field> getWrittenFields() {
+            return ALL_FIELDS; // same as TwitterApiEnricher
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.spillChannel.close();
+            Files.deleteIfExists(this.spillPath);
+            LOGGER.info("{} posts enriched from archive, {} already complete, {} not archived",
+                    this.numEnriched.sum(), this.numSkipped.sum(), this.numMissed.sum());
+        }
+
+        @Override
+        public String toString() {
+            return getClass().getSimpleName() + "(" + this.numFiles + " files, "
+                    + this.statuses.size() + " statuses, " + this.users.size() + " users)";
+        }
+
+        private static final class ArchivedUser {
+
+            final long statusId;
+
+            final long pointer;
+
+            ArchivedUser(final long statusId, final long pointer) {
+                this.statusId = statusId;
+                this.pointer = pointer;
+            }
+
+        }
+
+        private static final class Spill implements Closeable {
+
+            private final OutputStream out;
+
+            private long size;
+
+            Spill(final Path path) throws IOException {
+                this.out = new BufferedOutputStream(Files.newOutputStream(path), 1 << 16);
+                this.size = 0L;
+            }
+
+            long write(final JsonObject json) throws IOException {
+                final byte[] bytes = json.toString().getBytes(StandardCharsets.UTF_8);
+                if (bytes.length >= 1 << LENGTH_BITS) {
+                    throw new IOException("Archived object too large (" + bytes.length
+                            + " bytes): " + json.get("id"));
+                }
+                this.out.write(bytes);
+                final long pointer = this.size << LENGTH_BITS | bytes.length;
+                this.size += bytes.length;
+                return pointer;
+            }
+
+            @Override
+            public void close() throws IOException {
+                this.out.close();
+            }
+
+        }
+
+    }
+
+    private static class TwitterApiEnricher extends Enricher {
+
+        private static final String STATUS_KEY_PREFIX = "status:";
+
+        private static final String USER_KEY_PREFIX = "user:";
+
+        private static final int MAX_BATCH_SIZE = 100; // max IDs / names per lookup request
+
+        private static final String STATUS_ENDPOINT = "statuses/lookup";
+
+        private static final String USER_ENDPOINT = "users/lookup";
+
+        private static final int DATE = Field.DATE.mask; // bits of per-post missing bitmaps
+
+        private static final int TEXT = Field.TEXT.mask;
+
+        private static final int AUTHOR = Field.AUTHOR.mask;
+
+        private static final int MENTIONS = Field.MENTIONS.mask;
+
+        private static final Set<Field> READ_FIELDS = Sets.immutableEnumSet(Field.DATE, Field.TEXT,
+                Field.AUTHOR, Field.MENTIONS);
+
+        private final Twitter twitter;
+
+        private final int batchSize;
+
+        private final int concurrency;
+
+        private final ExecutorService executor;
+
+        @Nullable
+        private final DiskCache cache;
+
+        private final Cache<String, User> userCache;
+
+        private final Batcher<Long, Status> statusBatcher;
+
+        private final Batcher<String, User> userBatcher;
+
+        private final int retryAttempts;
+
+        private final long retryDelay;
+
+        @Nullable
+        private final Path deadLetterPath;
+
+        @Nullable
+        private final Writer deadLetterWriter;
+
+        private final LongAdder numEnriched;
+
+        private final LongAdder numSkipped;
+
+        private final LongAdder numFailed;
+
+        private final LongAdder numFailedBatches;
+
+        TwitterApiEnricher(final Twitter twitter, final Properties properties,
+                final String prefix) throws IOException {
+
+            // Read configuration
+            final String cacheFile = properties.getProperty(prefix + "cache.file");
+            final long cacheTtl = Long.parseLong(properties.getProperty(prefix + "cache.ttl",
+                    "" + TimeUnit.DAYS.toSeconds(30)));
+            final int cacheMaxEntries = Integer.parseInt(
+                    properties.getProperty(prefix + "cache.maxEntries", "1000000"));
+            final int userCacheSize = Integer.parseInt(
+                    properties.getProperty(prefix + "userCacheSize", "100000"));
+            final int batchSize = Integer.parseInt(
+                    properties.getProperty(prefix + "batchSize", "" + MAX_BATCH_SIZE));
+            final long batchLinger = Long.parseLong(
+                    properties.getProperty(prefix + "batchLinger", "100"));
+            final int retryAttempts = Integer.parseInt(
+                    properties.getProperty(prefix + "retry.attempts", "3"));
+            final long retryDelay = Long.parseLong(
+                    properties.getProperty(prefix + "retry.delay", "1000"));
+            final String deadLetterFile = properties.getProperty(prefix + "deadLetterFile");
+            Preconditions.checkArgument(userCacheSize >= 0, "Invalid user cache size %s",
+                    userCacheSize);
+            Preconditions.checkArgument(batchSize > 0 && batchSize <= MAX_BATCH_SIZE,
+                    "Invalid batch size %s", batchSize);
+            Preconditions.checkArgument(retryAttempts > 0, "Invalid retry attempts %s",
+                    retryAttempts);
+            Preconditions.checkArgument(retryDelay >= 0, "Invalid retry delay %s", retryDelay);
+
+            // Initialize the enricher. Lookup batches are executed concurrently by at most one
+            // thread per account, and are filled with IDs / names from concurrent enrich() calls
+            this.twitter = twitter;
+            this.batchSize = batchSize;
+            this.retryAttempts = retryAttempts;
+            this.retryDelay = retryDelay;
+            this.deadLetterPath = Strings.isNullOrEmpty(deadLetterFile) ? null
+                    : Paths.get(deadLetterFile).toAbsolutePath();
+            this.deadLetterWriter = this.deadLetterPath == null ? null
+                    : Files.newBufferedWriter(this.deadLetterPath, StandardCharsets.UTF_8,
+                            StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            this.numEnriched = new LongAdder();
+            this.numSkipped = new LongAdder();
+            this.numFailed = new LongAdder();
+            this.numFailedBatches = new LongAdder();
+            this.cache = Strings.isNullOrEmpty(cacheFile) ? null
+                    : DiskCache.open(Paths.get(cacheFile), cacheTtl, TimeUnit.SECONDS,
+                            cacheMaxEntries);
+            this.userCache = CacheBuilder.newBuilder().maximumSize(userCacheSize)
+                    .concurrencyLevel(Runtime.getRuntime().availableProcessors())
+                    .recordStats().build();
+            this.concurrency = TwitterBuilder.getNumAccounts(twitter);
+            this.executor = Executors.newFixedThreadPool(this.concurrency,
+                    new ThreadFactoryBuilder().setDaemon(true)
+                            .setNameFormat("microneel-twitter-%d").build());
+            this.statusBatcher = new Batcher<>(ids -> lookup("status", ids, () -> {
+                final Map<Long, Status> statuses = new HashMap<>();
+                for (final Status status : this.twitter.lookup(Longs.toArray(ids))) {
+                    statuses.put(status.getId(), status);
+                }
+                return statuses;
+            }), batchSize, batchLinger, TimeUnit.MILLISECONDS, this.executor);
+            this.userBatcher = new Batcher<>(usernames -> lookup("user", usernames, () -> {
+                final Map<String, User> users = new HashMap<>();
+                for (final User user : this.twitter
+                        .lookupUsers(usernames.toArray(new String[usernames.size()]))) {
+                    users.put(normalize(user.getScreenName()), user);
+                }
+                return users;
+            }), batchSize, batchLinger, TimeUnit.MILLISECONDS, this.executor);
+        }
+
+        @Override
+        public void enrich(final Iterable<Post> posts) throws IOException {
+
+            // Enrich posts, keeping track of the ones enriched and of the ones whose lookups
+            // failed (and are thus left incomplete, their IDs / usernames being dead-lettered)
+            final Set<Post> enriched = Sets.newIdentityHashSet();
+            final Set<Post> failed = Sets.newIdentityHashSet();
+            enrichViaStatusLookup(posts, enriched, failed);
+            enrichViaUserLookup(posts, enriched, failed);
+
+            // Update statistics
+            enriched.removeAll(failed);
+            this.numEnriched.add(enriched.size());
+            this.numFailed.add(failed.size());
+            this.numSkipped.add(Iterables.size(posts) - enriched.size() - failed.size());
+        }
+
+        @Override
+        public Set<Field> getReadFields() {
+            return READ_FIELDS;
+        }
+
+        @Override
+        public Set<Field> getWrittenFields() {
+            return ALL_FIELDS; // date, text, author and all annotation types
+        }
+
+        @Override
+        public void plan(final Iterable<Post> posts, final EnrichmentPlan plan)
+                throws IOException {
+
+            // Register the looked up endpoints, estimating times based on rate limits
+            plan.register(STATUS_ENDPOINT, this.batchSize,
+                    n -> TwitterBuilder.estimateTime(this.twitter, "lookup", n));
+            plan.register(USER_ENDPOINT, this.batchSize,
+                    n -> TwitterBuilder.estimateTime(this.twitter, "lookupUsers", n));
+
+            // Plan the status lookups not answered by the disk cache, noting the authors whose
+            // profiles will be obtained from returned statuses
+            final Set<String> coveredUsernames = new HashSet<>();
+            final LongHashSet ids = selectStatusIds(posts);
+            for (final Post post : posts) {
+                final long id = post.getTwitterIdAsLong();
+                if (id >= 0 && ids.contains(id)) {
+                    if (this.cache == null || !this.cache.contains(STATUS_KEY_PREFIX + id)) {
+                        plan.add(STATUS_ENDPOINT, id);
+                    }
+                    if (post.getAuthorUsername() != null) {
+                        coveredUsernames.add(normalize(post.getAuthorUsername()));
+                    }
+                }
+            }
+
+            // Plan the user lookups for incomplete authors and mentions not answered by caches
+            final Consumer<MentionAnnotation> mentionPlanner = m -> {
+                if (m.getFullName() == null || m.getDescription() == null) {
+                    planUserLookup(normalize(m.getUsername()), coveredUsernames, plan);
+                }
+            };
+            for (final Post post : posts) {
+                final int missing = getMissingFields(post);
+                if ((missing & AUTHOR) != 0 && post.getAuthorUsername() != null) {
+                    planUserLookup(normalize(post.getAuthorUsername()), coveredUsernames, plan);
+                }
+                if ((missing & MENTIONS) != 0) {
+                    post.forEachMention(mentionPlanner);
+                }
+            }
+        }
+
+        private void planUserLookup(final String username, final Set<String> coveredUsernames,
+                final EnrichmentPlan plan) {
+            if (!coveredUsernames.contains(username)
+                    && this.userCache.getIfPresent(username) == null
+                    && (this.cache == null || !this.cache.contains(USER_KEY_PREFIX + username))) {
+                plan.add(USER_ENDPOINT, username);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            final Closer closer = Closer.create();
+            closer.register(this.deadLetterWriter);
+            closer.register(this.cache);
+            try {
+                this.statusBatcher.close();
+                this.userBatcher.close();
+                this.executor.shutdown();
+                LOGGER.info("Twitter status lookups: {}", this.statusBatcher);
+                LOGGER.info("Twitter user lookups: {}", this.userBatcher);
+                LOGGER.info("Twitter user cache: {} users, {}", this.userCache.size(),
+                        this.userCache.stats());
+                if (this.cache != null) {
+                    LOGGER.info("Twitter response cache: {}", this.cache);
+                }
+                LOGGER.info("Twitter enrichment summary: {} posts enriched, {} skipped "
+                        + "(complete or not found), {} failed ({} failed lookup batches{})",
+                        this.numEnriched.sum(), this.numSkipped.sum(), this.numFailed.sum(),
+                        this.numFailedBatches.sum(), this.deadLetterPath == null ? ""
+                                : ", dead-lettered to " + this.deadLetterPath);
+            } catch (final Throwable ex) {
+                throw closer.rethrow(ex);
+            } finally {
+                closer.close();
+            }
+        }
+
+        private <K, V> Map<K, V> lookup(final String type, final List<K> keys,
+                final Callable<Map<K, V>> request) throws Exception {
+
+            // Perform the lookup request, retrying it with exponential backoff on transient
+            // failures, up to the configured number of attempts (rate limits, bans and service
+            // unavailability are already handled by the Twitter object built by TwitterBuilder)
+            long delay = this.retryDelay;
+            for (int attempt = 1;; ++attempt) {
+                try {
+                    return request.call();
+                } catch (final Exception ex) {
+                    if (ex instanceof TwitterException
+                            && ((TwitterException) ex).getStatusCode() == 404) {
+                        return ImmutableMap.of(); // returned when none of the keys is found
+                    } else if (Thread.currentThread().isInterrupted()) {
+                        throw ex;
+                    } else if (attempt < this.retryAttempts && isTransient(ex)) {
+                        LOGGER.warn("Twitter {} lookup of {} keys failed (attempt {}/{}), "
+                                + "retrying in {} ms: {}", type, keys.size(), attempt,
+                                this.retryAttempts, delay, describe(ex));
+                        Thread.sleep(delay);
+                        delay *= 2;
+                    } else {
+                        deadLetter(type, keys, ex);
+                        throw new LookupFailedException(ex);
+                    }
+                }
+            }
+        }
+
+        private void deadLetter(final String type, final List<?> keys, final Throwable ex)
+                throws IOException {
+            this.numFailedBatches.increment();
+            final String error = describe(ex);
+            LOGGER.error("Twitter {} lookup of {} keys failed{}: {}", type, keys.size(),
+                    this.deadLetterPath == null ? "" : ", dead-lettering them", error);
+            if (this.deadLetterWriter != null) {
+                synchronized (this.deadLetterWriter) {
+                    for (final Object key : keys) {
+                        this.deadLetterWriter.write(type + "\t" + key + "\t" + error + "\n");
+                    }
+                    this.deadLetterWriter.flush();
+                }
+            }
+        }
+
+        private void enrichViaStatusLookup(final Iterable<Post> posts, final Set<Post> enriched,
+                final Set<Post> failed) throws IOException {
+
+            // Collect the IDs of the statuses that is possible & useful to gather from Twitter
+            final LongHashSet ids = selectStatusIds(posts);
+
+            // Retrieve cached statuses, if possible, identifying the ones to gather from Twitter
+            final LongHashMap<Status> statuses = new LongHashMap<>(ids.size());
+            long[] idArray = ids.toArray();
+            if (this.cache != null) {
+                int numMisses = 0;
+                for (final long id : idArray) {
+                    final byte[] bytes = this.cache.get(STATUS_KEY_PREFIX + id);
+                    if (bytes == null) {
+                        idArray[numMisses++] = id;
+                    } else if (bytes.length > 0) {
+                        statuses.put(id, (Status) deserialize(bytes));
+                    }
+                }
+                idArray = Arrays.copyOf(idArray, numMisses);
+            }
+
+            // Gather statuses in batches of 100 (most efficient way), shared with other callers
+            final List<CompletableFuture<Status>> futures = new ArrayList<>(idArray.length);
+            for (final long id : idArray) {
+                futures.add(this.statusBatcher.get(id));
+            }
+            final LongHashSet failedIds = new LongHashSet();
+            for (int i = 0; i < idArray.length; ++i) {
+                try {
+                    final Status status = await(futures.get(i));
+                    if (status != null) {
+                        statuses.put(idArray[i], status);
+                    }
+                } catch (final LookupFailedException ex) {
+                    failedIds.add(idArray[i]);
+                }
+            }
+
+            // Cache gathered statuses, marking the ones not found (e.g., deleted)
+            if (this.cache != null) {
+                for (final long id : idArray) {
+                    if (failedIds.contains(id)) {
+                        continue; // don't cache failures, so to retry in later runs
+                    }
+                    final Status status = statuses.get(id);
+                    this.cache.put(STATUS_KEY_PREFIX + id,
+                            status == null ? new byte[0] : serialize(status));
+                }
+            }
+
+            // Use retrieved status data to enrich posts
+            for (final Post post : posts) {
+                final long id = post.getTwitterIdAsLong();
+                final Status status = statuses.get(id);
+                if (id >= 0 && failedIds.contains(id)) {
+                    failed.add(post);
+                } else if (status != null) {
+                    // Enrich the post, remembering its author for the user lookup phase
+                    enriched.add(post);
+                    applyStatus(post, status);
+                    final User user = status.getUser();
+                    if (user != null) {
+                        this.userCache.put(normalize(user.getScreenName()), user);
+                    }
+                }
+            }
+        }
+
+        private void enrichViaUserLookup(final Iterable<Post> posts, final Set<Post> enriched,
+                final Set<Post> failed) throws IOException {
+
+            // Collect the (normalized) usernames of the users that is possible & useful to gather
+            final Set<String> usernames = new HashSet<>();
+            final Consumer<MentionAnnotation> collector = m -> {
+                if (m.getFullName() == null || m.getDescription() == null) {
+                    usernames.add(normalize(m.getUsername()));
+                }
+            };
+            for (final Post post : posts) {
+                if (post.getAuthorUsername() != null && (post.getAuthorFullName() == null
+                        || post.getAuthorDescription() == null)) {
+                    usernames.add(normalize(post.getAuthorUsername()));
+                }
+                post.forEachMention(collector);
+            }
+
+            // Retrieve users from the in-memory and disk caches, if possible, identifying the
+            // ones to gather from Twitter
+            final Map<String, User> users = new HashMap<>();
+            for (final Iterator<String> i = usernames.iterator(); i.hasNext();) {
+                final String username = i.next();
+                final User user = this.userCache.getIfPresent(username);
+                if (user != null) {
+                    users.put(username, user);
+                    i.remove();
+                } else if (this.cache != null) {
+                    final byte[] bytes = this.cache.get(USER_KEY_PREFIX + username);
+                    if (bytes != null) {
+                        i.remove();
+                        if (bytes.length > 0) {
+                            final User cachedUser = (User) deserialize(bytes);
+                            users.put(username, cachedUser);
+                            this.userCache.put(username, cachedUser);
+                        }
+                    }
+                }
+            }
+
+            // Gather users in batches of 100 (most efficient way), shared with other callers
+            final List<String> names = new ArrayList<>(usernames);
+            final List<CompletableFuture<User>> futures = new ArrayList<>(names.size());
+            for (final String username : names) {
+                futures.add(this.userBatcher.get(username));
+            }
+            final Set<String> failedUsernames = new HashSet<>();
+            for (int i = 0; i < names.size(); ++i) {
+                try {
+                    final User user = await(futures.get(i));
+                    if (user != null) {
+                        users.put(names.get(i), user);
+                        this.userCache.put(names.get(i), user);
+                    }
+                } catch (final LookupFailedException ex) {
+                    failedUsernames.add(names.get(i));
+                }
+            }
+
+            // Cache gathered users on disk, marking the ones not found (e.g., suspended)
+            if (this.cache != null) {
+                for (final String username : usernames) {
+                    if (failedUsernames.contains(username)) {
+                        continue; // don't cache failures, so to retry in later runs
+                    }
+                    final User user = users.get(username);
+                    this.cache.put(USER_KEY_PREFIX + username,
+                            user == null ? new byte[0] : serialize(user));
+                }
+            }
+
+            // Use retrieved user data to enrich posts
+            for (final Post post : posts) {
+                // Enrich the post author
+                final String authorUsername = post.getAuthorUsername();
+                final String author = authorUsername == null ? null : normalize(authorUsername);
+                final User authorUser = author == null ? null : users.get(author);
+                if (authorUser != null) {
+                    enriched.add(post);
+                    applyAuthor(post, authorUser);
+                } else if (author != null && failedUsernames.contains(author)) {
+                    failed.add(post);
+                }
+
+                // Enrich mention annotations
+                post.forEachMention(m -> {
+                    final String username = normalize(m.getUsername());
+                    final User user = users.get(username);
+                    if (user != null) {
+                        enriched.add(post);
+                        applyMention(m, user);
+                    } else if (failedUsernames.contains(username)) {
+                        failed.add(post);
+                    }
+                });
+            }
+        }
+
+        /**
+         * Fills the missing date, text and author of a post, and adds its mention, hashtag and
+         * URL annotations, based on the Twitter status of the post.
+         */
+        private static void applyStatus(final Post post, final Status status) {
+
+            // Enrich post date and text
+            if (post.getDate() == null) {
+                post.setDate(status.getCreatedAt());
+            }
+            if (post.getText() == null) {
+                post.setText(status.getText());
+            }
+
+            // Enrich post author
+            final User user = status.getUser();
+            if (user != null) {
+                if (post.getAuthorUsername() == null) {
+                    post.setAuthorUsername(user.getScreenName());
+                }
+                applyAuthor(post, user);
+            }
+
+            // Enrich mention / hashtag / url annotations
+            for (final UserMentionEntity e : status.getUserMentionEntities()) {
+                final MentionAnnotation m = addEntity(post, MentionAnnotation.class,
+                        e.getStart(), e.getEnd(), true);
+                if (m != null && m.getFullName() == null) {
+                    m.setFullName(e.getName());
+                }
+            }
+            for (final HashtagEntity e : status.getHashtagEntities()) {
+                addEntity(post, HashtagAnnotation.class, e.getStart(), e.getEnd(), true);
+            }
+            for (final URLEntity e : status.getURLEntities()) {
+                addEntity(post, UrlAnnotation.class, e.getStart(), e.getEnd(), true);
+            }
+        }
+
+        /**
+         * Adds an entity annotation to a post, returning the annotation already there if equal.
+         * Entity offsets are either char indexes, as used by annotations, or code point indexes,
+         * as returned by the Twitter API, in which case they are converted to char indexes based
+         * on the post text (they differ if the text contains supplementary chars, e.g., emojis).
+         * The entity is skipped if it overlaps a different annotation, e.g., added by another
+         * enricher from a differently tokenized text, or if it is outside the post text.
+         */
+        @Nullable
+        private static <T extends Annotation> T addEntity(final Post post,
+                final Class<T> annotationClazz, final int entityBegin, final int entityEnd,
+                final boolean codePointOffsets) {
+            synchronized (post) { // post lock, making check and addition atomic
+                final String text = post.getText();
+                if (text == null || entityBegin < 0 || entityBegin >= entityEnd) {
+                    return null;
+                }
+                int beginIndex = entityBegin;
+                int endIndex = entityEnd;
+                if (codePointOffsets) {
+                    try {
+                        beginIndex = text.offsetByCodePoints(0, entityBegin);
+                        endIndex = text.offsetByCodePoints(beginIndex, entityEnd - entityBegin);
+                    } catch (final IndexOutOfBoundsException ex) {
+                        return null; // outside the post text
+                    }
+                } else if (endIndex > text.length()) {
+                    return null;
+                }
+                for (final Annotation a : post.getAnnotations(beginIndex, endIndex)) {
+                    if (a.getBeginIndex() != beginIndex || a.getEndIndex() != endIndex
+                            || !annotationClazz.isInstance(a)) {
+                        return null;
+                    }
+                }
+                return post.addAnnotation(annotationClazz, beginIndex, endIndex);
+            }
+        }
+
+        /**
+         * Fills the missing author full name and description of a post, based on the Twitter
+         * user of its author.
+         */
+        private static void applyAuthor(final Post post, final User user) {
+            if (post.getAuthorFullName() == null) {
+                post.setAuthorFullName(user.getName());
+            }
+            if (post.getAuthorDescription() == null) {
+                post.setAuthorDescription(user.getDescription());
+            }
+        }
+
+        /**
+         * Fills the missing full name and description of a mention, based on the Twitter user
+         * mentioned.
+         */
+        private static void applyMention(final MentionAnnotation mention, final User user) {
+            if (mention.getFullName() == null) {
+                mention.setFullName(user.getName());
+            }
+            if (mention.getDescription() == null) {
+                mention.setDescription(user.getDescription());
+            }
+        }
+
+        @Nullable
+        private static <T> T await(final CompletableFuture<T> future)
+                throws LookupFailedException {
+            try {
+                return future.get();
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Operation interrupted", ex);
+            } catch (final ExecutionException ex) {
+                Throwables.propagateIfPossible(ex.getCause(), LookupFailedException.class);
+                throw Throwables.propagate(ex.getCause());
+            }
+        }
+
+        private static String describe(final Throwable ex) {
+            String message = ex.getMessage();
+            if (ex instanceof TwitterException) {
+                final TwitterException tex = (TwitterException) ex;
+                message = "HTTP " + tex.getStatusCode() + ", error " + tex.getErrorCode() + ", "
+                        + (tex.getErrorMessage() != null ? tex.getErrorMessage()
+                                : tex.getCause() != null ? tex.getCause().toString() : "");
+            }
+            return ex.getClass().getSimpleName() + ": "
+                    + Strings.nullToEmpty(message).replaceAll("\\s+", " ").trim();
+        }
+
+        private static boolean isTransient(final Exception ex) {
+            if (ex instanceof TwitterException) {
+                final TwitterException tex = (TwitterException) ex;
+                return tex.isCausedByNetworkIssue() || tex.getStatusCode() >= 500
+                        || tex.getStatusCode() == 429 || tex.getStatusCode() <= 0;
+            }
+            return ex instanceof IOException;
+        }
+
+        /**
+         * Reads the lookups dead-lettered in the file specified by a previous run, returning a
+         * filter accepting the posts affected by them, i.e., whose status or whose author or
+         * mentioned users could not be looked up. As these posts have been written incomplete
+         * and checkpointed, this allows retrying them by enriching the previous output.
+         */
+        static Predicate<Post> readDeadLetters(final Path path) throws IOException {
+            final LongHashSet statusIds = new LongHashSet();
+            final Set<String> usernames = new HashSet<>();
+            try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    final String[] fields = line.split("\t", 3);
+                    if (fields.length >= 2 && fields[0].equals("status")) {
+                        statusIds.add(Long.parseLong(fields[1]));
+                    } else if (fields.length >= 2 && fields[0].equals("user")) {
+                        usernames.add(normalize(fields[1]));
+                    }
+                }
+            } catch (final NumberFormatException ex) {
+                throw new IOException("Invalid dead-letter file " + path, ex);
+            }
+            LOGGER.info("Retrying the lookups of {} statuses and {} users dead-lettered in {}",
+                    statusIds.size(), usernames.size(), path);
+            final Predicate<MentionAnnotation> mentionFilter = m -> usernames
+                    .contains(normalize(m.getUsername()));
+            return post -> {
+                final long id = post.getTwitterIdAsLong();
+                final String author = post.getAuthorUsername();
+                return id >= 0 && statusIds.contains(id)
+                        || author != null && usernames.contains(normalize(author))
+                        || post.getAnnotations(MentionAnnotation.class).stream()
+                                .anyMatch(mentionFilter);
+            };
+        }
+
+        private static String normalize(final String username) {
+            return username.toLowerCase(Locale.ROOT); // screen names are case insensitive
+        }
+
+        private static byte[] serialize(final Object object) throws IOException {
+            final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new ObjectOutputStream(new DeflaterOutputStream(bos))) {
+                out.writeObject(object);
+            }
+            return bos.toByteArray();
+        }
+
+        private static Object deserialize(final byte[] bytes) throws IOException {
+            try (ObjectInputStream in = new ObjectInputStream(
+                    new InflaterInputStream(new ByteArrayInputStream(bytes)))) {
+                return in.readObject();
+            } catch (final ClassNotFoundException ex) {
+                throw new IOException("Incompatible cached object", ex);
+            }
+        }
+
+        private LongHashSet selectStatusIds(final Iterable<Post> posts) {
+
+            // Scan posts once, computing their missing bitmaps and the usernames of incomplete
+            // mentions, which have to be looked up via users/lookup anyway
+            int[] missings = new int[MAX_BATCH_SIZE];
+            int numPosts = 0;
+            final Set<String> mentionUsernames = new HashSet<>();
+            final Consumer<MentionAnnotation> collector = m -> {
+                if (m.getFullName() == null || m.getDescription() == null) {
+                    mentionUsernames.add(normalize(m.getUsername()));
+                }
+            };
+            for (final Post post : posts) {
+                final int missing = getMissingFields(post);
+                if ((missing & MENTIONS) != 0) {
+                    post.forEachMention(collector);
+                }
+                if (numPosts == missings.length) {
+                    missings = Arrays.copyOf(missings, numPosts * 2);
+                }
+                missings[numPosts++] = missing;
+            }
+
+            // Look up a status if its date, text or author username are missing, as only
+            // statuses/lookup provides them. Incomplete mentions are left to users/lookup, which
+            // returns both full names and descriptions. Incomplete author profiles are obtained
+            // via users/lookup (one key per author, possibly shared with mentions), unless the
+            // author is not mentioned and users/lookup is currently slower than statuses/lookup
+            final long userTime = TwitterBuilder.estimateTime(this.twitter, "lookupUsers", 1);
+            final long statusTime = TwitterBuilder.estimateTime(this.twitter, "lookup", 1);
+            final boolean preferStatus = userTime > statusTime && statusTime >= 0;
+            final LongHashSet ids = new LongHashSet();
+            int index = 0;
+            for (final Post post : posts) {
+                final int missing = missings[index++];
+                final long id = post.getTwitterIdAsLong();
+                final String username = post.getAuthorUsername();
+                if (id >= 0 && ((missing & (DATE | TEXT)) != 0
+                        || (missing & AUTHOR) != 0 && (username == null || preferStatus
+                                && !mentionUsernames.contains(normalize(username))))) {
+                    ids.add(id);
+                }
+            }
+            return ids;
+        }
+
+        private static int getMissingFields(final Post post) {
+            int missing = 0;
+            if (post.getDate() == null) {
+                missing |= DATE;
+            }
+            if (post.getText() == null) {
+                missing |= TEXT;
+            }
+            if (post.getAuthorUsername() == null || post.getAuthorFullName() == null
+                    || post.getAuthorDescription() == null) {
+                missing |= AUTHOR;
+            }
+            final List<MentionAnnotation> mentions = post.getAnnotations(MentionAnnotation.class);
+            for (int i = 0; i < mentions.size(); ++i) {
+                final MentionAnnotation m = mentions.get(i);
+                if (m.getFullName() == null || m.getDescription() == null) {
+                    missing |= MENTIONS;
+                    break;
+                }
+            }
+            return missing;
+        }
+
+        @Override
+        public String toString() {
+            return getClass().getSimpleName() + "(" + this.twitter + ", " + this.concurrency
+                    + " concurrent requests" + (this.cache == null ? "" : ", " + this.cache)
+                    + ")";
+        }
+
+        private static final class LookupFailedException extends Exception {
+
+            private static final long serialVersionUID = 1L;
+
+            LookupFailedException(final Throwable cause) {
+                super(cause);
+            }
+
         }
 
     }
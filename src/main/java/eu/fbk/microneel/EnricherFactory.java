@@ -0,0 +1,62 @@
+package eu.fbk.microneel;
+
+import java.io.IOException;
+import java.util.Properties;
+
+/**
+ * A factory of {@link Enricher}s of a certain type, pluggable via {@link java.util.ServiceLoader}.
+ * <p>
+ * Implementations are registered by listing their fully qualified class names in a
+ * {@code META-INF/services/eu.fbk.microneel.EnricherFactory} file on the classpath, and must have
+ * a public no-argument constructor. {@link Enricher#create(Properties, String)} looks up the
+ * factory of each type listed in the {@code type} configuration property, and supplies it the
+ * configuration subtree for that type, i.e., the properties {@code <prefix><type>.<name>}, with
+ * names stripped of {@code <prefix><type>.}. The factory also declares the concurrency and
+ * batching capabilities of the enrichers it creates, which {@code Enricher.create} uses to wrap
+ * them so that they are invoked safely and efficiently.
+ * </p>
+ */
+public interface EnricherFactory {
+
+    /**
+     * Returns the type name under which this factory is registered, e.g., {@code api}.
+     *
+     * @return the type name, not containing whitespaces
+     */
+    String getType();
+
+    /**
+     * Creates a new enricher, based on the configuration subtree supplied.
+     *
+     * @param properties
+     *            the configuration properties for this type of enricher, with names relative to
+     *            the type prefix
+     * @return the created enricher
+     * @throws IOException
+     *             on failure
+     */
+    Enricher create(Properties properties) throws IOException;
+
+    /**
+     * Returns whether the enrichers created by this factory can be called by multiple threads
+     * concurrently. If not, calls are serialized. The default implementation returns false.
+     *
+     * @return true, if created enrichers are thread-safe
+     */
+    default boolean isConcurrent() {
+        return false;
+    }
+
+    /**
+     * Returns whether the enrichers created by this factory process the posts supplied to them
+     * together (e.g., grouping API lookups), so that they benefit from receiving many posts at a
+     * time. If not, and enrichers are also concurrent, the posts of a window are split among
+     * multiple threads. The default implementation returns true.
+     *
+     * @return true, if created enrichers process posts in batches
+     */
+    default boolean isBatching() {
+        return true;
+    }
+
+}
@@ -0,0 +1,175 @@
+package eu.fbk.microneel;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.LongUnaryOperator;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * An estimate of the API calls needed to enrich a collection of posts, computed before enriching
+ * them.
+ * <p>
+ * A plan is populated by calling {@link Enricher#plan(Iterable, EnrichmentPlan)} on the posts to
+ * enrich, possibly a window at a time. Enrichers {@link #register register} the endpoints they
+ * call, specifying how many keys (e.g., IDs) are looked up per call and how to estimate the time
+ * of a given number of calls based on rate limits, and then {@link #add add} the distinct keys to
+ * look up for each endpoint. The resulting numbers of calls and times are estimates, as keys
+ * discovered while enriching (e.g., the users mentioned in retrieved statuses) cannot be planned.
+ * Instances are not thread-safe.
+ * </p>
+ */
+public final class EnrichmentPlan {
+
+    private final Map<String, Endpoint> endpoints;
+
+    private long numPosts;
+
+    /**
+     * Creates a new empty plan.
+     */
+    public EnrichmentPlan() {
+        this.endpoints = new TreeMap<>();
+        this.numPosts = 0L;
+    }
+
+    /**
+     * Registers an endpoint, if not registered already.
+     *
+     * @param endpoint
+     *            the endpoint name, e.g., {@code statuses/lookup}
+     * @param batchSize
+     *            the number of keys looked up by each call
+     * @param timeEstimator
+     *            a function estimating the time in milliseconds needed for a given number of
+     *            calls, returning a negative value if unknown
+     */
+    public void register(final String endpoint, final int batchSize,
+            final LongUnaryOperator timeEstimator) {
+        Preconditions.checkArgument(batchSize > 0, "Invalid batch size %s", batchSize);
+        if (!this.endpoints.containsKey(endpoint)) {
+            this.endpoints.put(endpoint, new Endpoint(batchSize, timeEstimator));
+        }
+    }
+
+    /**
+     * Adds a key to look up via the endpoint specified, if not added already.
+     *
+     * @param endpoint
+     *            the endpoint, previously registered
+     * @param key
+     *            the key
+     * @return true, if the key was not already planned
+     */
+    public boolean add(final String endpoint, final Object key) {
+        final Endpoint e = this.endpoints.get(endpoint);
+        Preconditions.checkArgument(e != null, "Unregistered endpoint %s", endpoint);
+        return e.keys.add(key);
+    }
+
+    /**
+     * Records the number of posts specified as part of the plan.
+     *
+     * @param numPosts
+     *            the number of posts planned
+     */
+    public void addPosts(final long numPosts) {
+        Preconditions.checkArgument(numPosts >= 0, "Invalid number of posts %s", numPosts);
+        this.numPosts += numPosts;
+    }
+
+    /**
+     * Returns the number of posts planned.
+     *
+     * @return the number of posts
+     */
+    public long getNumPosts() {
+        return this.numPosts;
+    }
+
+    /**
+     * Returns the total number of calls planned, over all endpoints.
+     *
+     * @return the number of calls
+     */
+    public long getNumCalls() {
+        long numCalls = 0L;
+        for (final Endpoint endpoint : this.endpoints.values()) {
+            numCalls += endpoint.getNumCalls();
+        }
+        return numCalls;
+    }
+
+    /**
+     * Returns the estimated time for performing the planned calls. As endpoints are rate-limited
+     * independently and called concurrently, this is the maximum time over all the endpoints.
+     *
+     * @return the estimated time in milliseconds, or -1 if unknown
+     */
+    public long getEstimatedTime() {
+        long time = 0L;
+        for (final Endpoint endpoint : this.endpoints.values()) {
+            final long endpointTime = endpoint.getEstimatedTime();
+            if (endpointTime < 0) {
+                return -1L;
+            }
+            time = Math.max(time, endpointTime);
+        }
+        return time;
+    }
+
+    /**
+     * {@inheritDoc} The returned string reports the keys, calls and estimated time for each
+     * endpoint.
+     */
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder();
+        builder.append(this.numPosts).append(" posts, ").append(getNumCalls()).append(" calls");
+        for (final Map.Entry<String, Endpoint> entry : this.endpoints.entrySet()) {
+            final Endpoint endpoint = entry.getValue();
+            builder.append(", ").append(entry.getKey()).append(": ")
+                    .append(endpoint.keys.size()).append(" keys in ")
+                    .append(endpoint.getNumCalls()).append(" calls, ")
+                    .append(format(endpoint.getEstimatedTime()));
+        }
+        builder.append(", estimated time: ").append(format(getEstimatedTime()));
+        return builder.toString();
+    }
+
+    private static String format(final long time) {
+        if (time < 0) {
+            return "unknown";
+        }
+        final long seconds = (time + 999) / 1000;
+        return String.format("%d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60);
+    }
+
+    private static final class Endpoint {
+
+        final int batchSize;
+
+        final LongUnaryOperator timeEstimator;
+
+        final Set<Object> keys;
+
+        Endpoint(final int batchSize, final LongUnaryOperator timeEstimator) {
+            this.batchSize = batchSize;
+            this.timeEstimator = timeEstimator;
+            this.keys = new HashSet<>();
+        }
+
+        long getNumCalls() {
+            return (this.keys.size() + this.batchSize - 1) / this.batchSize;
+        }
+
+        long getEstimatedTime() {
+            final long numCalls = getNumCalls();
+            return numCalls == 0 ? 0L : this.timeEstimator.applyAsLong(numCalls);
+        }
+
+    }
+
+}
@@ -0,0 +1,34 @@
+package eu.fbk.microneel;
+
+import java.util.Properties;
+
+import eu.fbk.microneel.util.EntityScanner;
+
+/**
+ * The factory of {@code entities} enrichers, which add the mention, hashtag and URL annotations
+ * found in post texts by {@link EntityScanner}, without calling the Twitter API, which is looked
+ * up by {@code api} enrichers only for missing dates, texts and authors. No property is used.
+ */
+public final class EntityEnricherFactory implements EnricherFactory {
+
+    @Override
+    public String getType() {
+        return "entities";
+    }
+
+    @Override
+    public Enricher create(final Properties properties) {
+        return Enricher.createEntityEnricher();
+    }
+
+    @Override
+    public boolean isConcurrent() {
+        return true; // the enricher is stateless
+    }
+
+    @Override
+    public boolean isBatching() {
+        return false; // posts are processed one at a time
+    }
+
+}
@@ -0,0 +1,34 @@
+package eu.fbk.microneel;
+
+import java.io.IOException;
+import java.util.Properties;
+
+/**
+ * The factory of {@code definitions} enrichers, which fill the definitions of hashtag annotations
+ * from a {@link HashtagDictionary}. Property {@code file} specifies the dictionary file, built
+ * offline from a TSV file (required), while {@code cacheSize} bounds the number of memoized
+ * lookups.
+ */
+public final class HashtagDefinitionEnricherFactory implements EnricherFactory {
+
+    @Override
+    public String getType() {
+        return "definitions";
+    }
+
+    @Override
+    public Enricher create(final Properties properties) throws IOException {
+        return Enricher.createHashtagDefinitionEnricher(properties);
+    }
+
+    @Override
+    public boolean isConcurrent() {
+        return true; // the dictionary is read-only and the memoization cache is thread-safe
+    }
+
+    @Override
+    public boolean isBatching() {
+        return false; // posts are processed one at a time
+    }
+
+}
@@ -0,0 +1,370 @@
+package eu.fbk.microneel;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableSet;
+
+import eu.fbk.utils.core.CommandLine;
+import eu.fbk.utils.core.IO;
+
+/**
+ * A read-only dictionary of hashtag definitions, memory-mapped from a file and indexed by
+ * hashtag.
+ * <p>
+ * A {@code HashtagDictionary} file is created offline from a TSV file (see
+ * {@link #build(Path, Path)}), where each line contains a hashtag (with or without the initial
+ * {@code #}) followed by its definitions (e.g., entity URIs), separated by tabs. The file contains
+ * the entries, each consisting of the normalized (i.e., lowercased) hashtag and its definitions as
+ * length-prefixed UTF-8 strings, and an index of entry offsets sorted by hashtag, as a primitive
+ * {@code long} array. When opened (see {@link #open(Path)}), the file is memory-mapped and nothing
+ * is loaded in the heap, so that opening is immediate and heap usage does not depend on the
+ * dictionary size: the definitions of a hashtag are retrieved in O(log n) via binary search on
+ * the mapped index, comparing raw UTF-8 bytes (see {@link #get(String)}). Entries for the same
+ * hashtag in different TSV lines are merged at lookup time. Instances are thread-safe and must be
+ * closed after use.
+ * </p>
+ */
+public final class HashtagDictionary implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HashtagDictionary.class);
+
+    private static final byte[] MAGIC = new byte[] { 'M', 'N', 'H', 'D', 1 };
+
+    private static final int HEADER_LENGTH = 64;
+
+    private static final long SEGMENT_SIZE = 1L << 30; // 1 GB, as buffers are limited to 2 GB
+
+    private final Path path;
+
+    private final FileChannel channel;
+
+    private final ByteBuffer[] segments;
+
+    private final int size;
+
+    private final long indexOffset;
+
+    private HashtagDictionary(final Path path, final FileChannel channel) throws IOException {
+
+        // Read and validate the header
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0) {
+                throw new IOException("Not a hashtag dictionary file: " + path);
+            }
+        }
+        final byte[] magic = new byte[MAGIC.length];
+        header.position(0);
+        header.get(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("Invalid or unsupported hashtag dictionary file: " + path);
+        }
+        this.size = (int) header.getLong(8);
+        this.indexOffset = header.getLong(16);
+        final int maxEntryLength = header.getInt(24);
+
+        // Map the file in overlapping segments, so that each entry fits in the segment where
+        // it starts (required for files larger than 2 GB)
+        final long fileSize = channel.size();
+        this.segments = new ByteBuffer[(int) Math.max(1, (fileSize - 1) / SEGMENT_SIZE + 1)];
+        for (int i = 0; i < this.segments.length; ++i) {
+            final long start = i * SEGMENT_SIZE;
+            final long length = Math.min(fileSize - start, SEGMENT_SIZE + maxEntryLength);
+            this.segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+        }
+        this.path = path;
+        this.channel = channel;
+    }
+
+    /**
+     * Opens the hashtag dictionary file specified.
+     *
+     * @param path
+     *            the path of the hashtag dictionary file
+     * @return the opened dictionary, to be closed after use
+     * @throws IOException
+     *             on failure
+     */
+    public static HashtagDictionary open(final Path path) throws IOException {
+        final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            return new HashtagDictionary(path, channel);
+        } catch (final Throwable ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Builds a hashtag dictionary file out of the TSV file specified. Lines with no definitions
+     * are skipped.
+     *
+     * @param inputPath
+     *            the path of the input TSV file, possibly compressed
+     * @param dictionaryPath
+     *            the path of the hashtag dictionary file to create
+     * @return the number of entries stored
+     * @throws IOException
+     *             on failure
+     */
+    public static int build(final Path inputPath, final Path dictionaryPath) throws IOException {
+
+        // Collect the keys and offsets of the entries, to be sorted at the end
+        final List<IndexEntry> index = new ArrayList<>();
+        int skipped = 0;
+
+        try (BufferedReader reader = new BufferedReader(
+                IO.utf8Reader(IO.buffer(IO.read(inputPath.toString()))));
+                FileChannel channel = FileChannel.open(dictionaryPath, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+
+            // Leave room for the header, to be written at the end
+            final DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+            out.write(new byte[HEADER_LENGTH]);
+            long offset = HEADER_LENGTH;
+            int maxEntryLength = 8;
+
+            // Write an entry for each line with a hashtag and at least one definition
+            String line;
+            final List<byte[]> definitions = new ArrayList<>();
+            while ((line = reader.readLine()) != null) {
+                final String[] fields = line.split("\t");
+                final byte[] key = normalize(fields[0].trim());
+                definitions.clear();
+                for (int i = 1; i < fields.length; ++i) {
+                    final String definition = fields[i].trim();
+                    if (!definition.isEmpty()) {
+                        definitions.add(definition.getBytes(StandardCharsets.UTF_8));
+                    }
+                }
+                if (key.length == 0 || definitions.isEmpty()) {
+                    ++skipped;
+                    continue;
+                }
+                index.add(new IndexEntry(key, offset));
+                int length = writeBytes(out, key);
+                length += writeVarint(out, definitions.size());
+                for (final byte[] definition : definitions) {
+                    length += writeBytes(out, definition);
+                }
+                offset += length;
+                maxEntryLength = Math.max(maxEntryLength, length);
+            }
+
+            // Sort the index by key (stable, thus keeping entries for the same key in input
+            // order) and write it
+            final IndexEntry[] entries = index.toArray(new IndexEntry[index.size()]);
+            index.clear();
+            Arrays.sort(entries);
+            final long indexOffset = offset;
+            for (final IndexEntry entry : entries) {
+                out.writeLong(entry.offset);
+            }
+            out.flush();
+
+            // Write the header
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            header.put(MAGIC);
+            header.putLong(8, entries.length);
+            header.putLong(16, indexOffset);
+            header.putInt(24, maxEntryLength);
+            header.position(0);
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+
+            LOGGER.info("Stored {} hashtag entries in {} ({} lines skipped)", entries.length,
+                    dictionaryPath, skipped);
+            return entries.length;
+        }
+    }
+
+    /**
+     * Returns the number of entries in the dictionary. Entries for the same hashtag are counted
+     * separately.
+     *
+     * @return the number of entries
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Returns the definitions of the hashtag specified, decoding them from the mapped file.
+     *
+     * @param hashtag
+     *            the hashtag, with or without the initial {@code #}, matched case-insensitively
+     * @return the definitions, in TSV order and without duplicates, or null if the dictionary
+     *         contains no entry for the hashtag
+     */
+    @Nullable
+    public Set<String> get(final String hashtag) {
+        final byte[] key = normalize(hashtag);
+        Set<String> definitions = null;
+        for (int index = lowerBound(key); index < this.size; ++index) {
+            final ByteBuffer buffer = getEntry(index);
+            if (compare(buffer, key) != 0) {
+                break;
+            }
+            if (definitions == null) {
+                definitions = new LinkedHashSet<>();
+            }
+            final int count = (int) BinaryPostCodec.readVarint(buffer);
+            for (int i = 0; i < count; ++i) {
+                definitions.add(BinaryPostCodec.Decoder.readUTF8(buffer));
+            }
+        }
+        return definitions == null ? null : ImmutableSet.copyOf(definitions);
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "(" + this.path + ", " + this.size + " entries)";
+    }
+
+    private int lowerBound(final byte[] key) {
+        int low = 0;
+        int high = this.size;
+        while (low < high) {
+            final int mid = low + high >>> 1;
+            if (compare(getEntry(mid), key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private ByteBuffer getEntry(final int index) {
+        final long offset = this.indexOffset + 8L * index;
+        int segment = (int) (offset / SEGMENT_SIZE);
+        final long entryOffset = this.segments[segment]
+                .getLong((int) (offset - segment * SEGMENT_SIZE));
+        segment = (int) (entryOffset / SEGMENT_SIZE);
+        final ByteBuffer buffer = this.segments[segment].duplicate();
+        buffer.position((int) (entryOffset - segment * SEGMENT_SIZE));
+        return buffer;
+    }
+
+    private static int compare(final ByteBuffer buffer, final byte[] key) {
+        // Compares the key of the entry in the buffer with the key specified; if equal, the
+        // buffer is left positioned after the entry key
+        final int length = (int) BinaryPostCodec.readVarint(buffer);
+        final int position = buffer.position();
+        final int minLength = Math.min(length, key.length);
+        for (int i = 0; i < minLength; ++i) {
+            final int result = Integer.compare(buffer.get(position + i) & 0xFF, key[i] & 0xFF);
+            if (result != 0) {
+                return result;
+            }
+        }
+        buffer.position(position + length);
+        return Integer.compare(length, key.length);
+    }
+
+    private static byte[] normalize(final String hashtag) {
+        final String key = hashtag.startsWith("#") ? hashtag.substring(1) : hashtag;
+        return key.toLowerCase(Locale.ROOT).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int writeBytes(final DataOutputStream out, final byte[] bytes)
+            throws IOException {
+        final int length = writeVarint(out, bytes.length);
+        out.write(bytes);
+        return length + bytes.length;
+    }
+
+    private static int writeVarint(final DataOutputStream out, int value) throws IOException {
+        int length = 0;
+        for (; true; value >>>= 7) {
+            ++length;
+            if ((value & ~0x7F) == 0) {
+                out.write(value);
+                return length;
+            }
+            out.write(value & 0x7F | 0x80);
+        }
+    }
+
+    public static void main(final String... args) {
+        try {
+            // Parse command line
+            final long ts = System.currentTimeMillis();
+            final CommandLine cmd = CommandLine.parser().withName("microneel-hashtags")
+                    .withHeader("Builds a hashtag dictionary file from a TSV file of hashtag "
+                            + "definitions.")
+                    .withOption("i", "input", "specifies the input TSV FILE, with a hashtag and "
+                            + "its definitions per line", "FILE", CommandLine.Type.FILE_EXISTING,
+                            true, false, true)
+                    .withOption("o", "output", "specifies the hashtag dictionary FILE to create",
+                            "FILE", CommandLine.Type.FILE, true, false, true)
+                    .withLogger(LoggerFactory.getLogger("eu.fbk")).parse(args);
+
+            // Read options
+            final Path inputPath = cmd.getOptionValue("i", Path.class);
+            final Path outputPath = cmd.getOptionValue("o", Path.class);
+
+            // Build the dictionary
+            build(inputPath, outputPath);
+            LOGGER.info("Done in {} ms", System.currentTimeMillis() - ts);
+
+        } catch (final Throwable ex) {
+            // Abort execution, returning appropriate error code
+            CommandLine.fail(ex);
+        }
+    }
+
+    private static final class IndexEntry implements Comparable<IndexEntry> {
+
+        final byte[] key;
+
+        final long offset;
+
+        IndexEntry(final byte[] key, final long offset) {
+            this.key = key;
+            this.offset = offset;
+        }
+
+        @Override
+        public int compareTo(final IndexEntry other) {
+            final int minLength = Math.min(this.key.length, other.key.length);
+            for (int i = 0; i < minLength; ++i) {
+                final int result = Integer.compare(this.key[i] & 0xFF, other.key[i] & 0xFF);
+                if (result != 0) {
+                    return result;
+                }
+            }
+            return Integer.compare(this.key.length, other.key.length);
+        }
+
+    }
+
+}
@@ -0,0 +1,36 @@
+package eu.fbk.microneel;
+
+import java.io.IOException;
+import java.util.Properties;
+
+import eu.fbk.microneel.util.HashtagSegmenter;
+
+/**
+ * The factory of {@code segmentation} enrichers, which fill the tokenization of hashtag
+ * annotations via a {@link HashtagSegmenter}. Property {@code dictionary} specifies the word
+ * frequency dictionary (required), while {@code cacheSize} bounds the number of memoized
+ * segmentations.
+ */
+public final class HashtagSegmentationEnricherFactory implements EnricherFactory {
+
+    @Override
+    public String getType() {
+        return "segmentation";
+    }
+
+    @Override
+    public Enricher create(final Properties properties) throws IOException {
+        return Enricher.createHashtagSegmentationEnricher(properties);
+    }
+
+    @Override
+    public boolean isConcurrent() {
+        return true; // the segmenter is immutable and the memoization cache is thread-safe
+    }
+
+    @Override
+    public boolean isBatching() {
+        return false; // posts are processed one at a time
+    }
+
+}
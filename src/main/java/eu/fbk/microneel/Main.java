@@ -1,11 +1,12 @@
 package eu.fbk.microneel;
 
 import java.nio.file.Path;
-import java.util.List;
+import java.util.EnumSet;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import eu.fbk.microneel.Post.Field;
 import eu.fbk.utils.core.CommandLine;
 
 public class Main {
@@ -25,12 +26,15 @@ public class Main {
             // Read options
             final Path inputPath = cmd.getOptionValue("i", Path.class);
 
-            // Read posts
-            final List<Post> posts = Post.read(inputPath);
-            LOGGER.info("Read {} posts from {}", posts.size(), inputPath);
-            for (int i = 0; i < posts.size(); ++i) {
-                LOGGER.info("Post #{}:  {}", i, posts.get(i));
+            // Read posts one at a time, decoding only their text and annotations
+            int numPosts = 0;
+            try (PostReader reader = PostReader.open(inputPath, 1,
+                    EnumSet.of(Field.TEXT, Field.MENTIONS, Field.HASHTAGS, Field.URLS), false)) {
+                while (reader.hasNext()) {
+                    LOGGER.info("Post #{}:  {}", numPosts++, reader.next());
+                }
             }
+            LOGGER.info("Read {} posts from {}", numPosts, inputPath);
 
         } catch (final Throwable ex) {
             // Abort execution, returning appropriate error code
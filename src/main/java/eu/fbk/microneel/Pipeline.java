@@ -0,0 +1,258 @@
+package eu.fbk.microneel;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Iterators;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * A streaming enrichment pipeline, connecting a source of posts, an {@link Enricher} and a
+ * {@link PostWriter} via bounded queues.
+ * <p>
+ * The pipeline consists of three stages: a reader stage, which splits the posts from the source
+ * (typically a {@link PostReader}) in windows of fixed size; an enrichment stage, where up to a
+ * configurable number of windows are enriched concurrently via {@link Enricher#enrich(Iterable)};
+ * and a writer stage, run by the calling thread, where enriched windows are written in input order
+ * and flushed. Stages are connected by a bounded queue of pending windows, so that a slow stage
+ * blocks the previous ones (backpressure) and the number of posts in memory is bounded by the
+ * window size times the number of pending windows, independently of the input size. Output starts
+ * flowing as soon as the first window is enriched. As windows are enriched concurrently, the
+ * enricher must be thread-safe; using windows as large as API lookups and a batching enricher
+ * (as the Twitter API one), concurrent windows share full lookup requests.
+ * </p>
+ * <p>
+ * Optionally, the pipeline periodically saves a {@link Checkpoint} of the posts enriched and
+ * written so far, syncing the (resumable) writer; a checkpoint is also saved when enrichment
+ * fails, e.g., due to an exhausted or banned account, so that a later run may resume from the
+ * last post written without repeating its API lookups.
+ * </p>
+ */
+public final class Pipeline {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Pipeline.class);
+
+    private static final int LOG_INTERVAL = 10000; // posts
+
+    private Pipeline() {
+    }
+
+    /**
+     * Runs the pipeline, returning after all the posts have been enriched and written or a
+     * failure occurred. On failure, the source and the writer are left in an undefined state.
+     *
+     * @param source
+     *            the source of posts to enrich
+     * @param enricher
+     *            the enricher, which must be thread-safe if parallelism is greater than 1
+     * @param writer
+     *            the writer where to emit enriched posts
+     * @param windowSize
+     *            the number of posts in each window
+     * @param parallelism
+     *            the maximum number of windows enriched concurrently
+     * @return the number of posts enriched and written
+     * @throws IOException
+     *             on failure in writing posts; other failures are propagated wrapped in unchecked
+     *             exceptions
+     */
+    public static long run(final Iterator<Post> source, final Enricher enricher,
+            final PostWriter writer, final int windowSize, final int parallelism)
+            throws IOException {
+        return run(source, enricher, writer, windowSize, parallelism, Checkpoint.empty(), null,
+                0);
+    }
+
+    /**
+     * Runs the pipeline saving checkpoints, returning after all the posts have been enriched and
+     * written or a failure occurred. A checkpoint is saved every {@code checkpointInterval}
+     * posts, when the source is exhausted and when enrichment fails; in the last case, the
+     * checkpoint accounts for all the windows written before the failure.
+     *
+     * @param source
+     *            the source of posts to enrich, positioned after the posts already processed
+     *            according to the initial checkpoint
+     * @param enricher
+     *            the enricher, which must be thread-safe if parallelism is greater than 1
+     * @param writer
+     *            the writer where to emit enriched posts, which must be resumable (see
+     *            {@link PostWriter#open(Path, long)}) if a checkpoint file is specified
+     * @param windowSize
+     *            the number of posts in each window
+     * @param parallelism
+     *            the maximum number of windows enriched concurrently
+     * @param checkpoint
+     *            the initial checkpoint, describing the posts processed by previous runs
+     * @param checkpointPath
+     *            the file where to save checkpoints, null to disable checkpointing
+     * @param checkpointInterval
+     *            the minimum number of posts written between checkpoints
+     * @return the number of posts enriched and written by this run
+     * @throws IOException
+     *             on failure in writing posts or checkpoints; other failures are propagated
+     *             wrapped in unchecked exceptions
+     */
+    public static long run(final Iterator<Post> source, final Enricher enricher,
+            final PostWriter writer, final int windowSize, final int parallelism,
+            final Checkpoint checkpoint, @Nullable final Path checkpointPath,
+            final int checkpointInterval) throws IOException {
+
+        Preconditions.checkArgument(windowSize > 0, "Invalid window size %s", windowSize);
+        Preconditions.checkArgument(parallelism > 0, "Invalid parallelism %s", parallelism);
+        Preconditions.checkArgument(checkpointPath == null || checkpointInterval > 0,
+                "Invalid checkpoint interval %s", checkpointInterval);
+        Preconditions.checkNotNull(checkpoint);
+
+        // Allocate a thread for the reader stage and the threads for the enrichment stage
+        final ExecutorService executor = Executors.newFixedThreadPool(parallelism + 1,
+                new ThreadFactoryBuilder().setDaemon(true)
+                        .setNameFormat("microneel-pipeline-%d").build());
+        final BlockingQueue<Future<List<Post>>> queue = new ArrayBlockingQueue<>(parallelism);
+        final Future<List<Post>> eof = CompletableFuture.completedFuture(Collections.emptyList());
+
+        try {
+            // Reader stage: read windows and submit them for enrichment, blocking if too many
+            // windows are pending
+            executor.submit(() -> {
+                try {
+                    for (final Iterator<List<Post>> i = Iterators.partition(source,
+                            windowSize); i.hasNext();) {
+                        final List<Post> window = i.next();
+                        queue.put(CompletableFuture.supplyAsync(() -> {
+                            try {
+                                enricher.enrich(window);
+                                return window;
+                            } catch (final Throwable ex) {
+                                throw new CompletionException(ex);
+                            }
+                        }, executor));
+                    }
+                    queue.put(eof);
+                } catch (final InterruptedException ex) {
+                    // pipeline aborted by the writer stage
+                } catch (final Throwable ex) {
+                    final CompletableFuture<List<Post>> failure = new CompletableFuture<>();
+                    failure.completeExceptionally(ex);
+                    try {
+                        queue.put(failure); // writer stage always consumes it or aborts
+                    } catch (final InterruptedException ex2) {
+                        // pipeline aborted by the writer stage
+                    }
+                }
+                return null;
+            });
+
+            // Writer stage: write enriched windows in order, checkpointing periodically
+            final Checkpointer checkpointer = new Checkpointer(writer, checkpoint,
+                    checkpointPath);
+            long numPosts = 0;
+            try {
+                while (true) {
+                    final Future<List<Post>> future = queue.take();
+                    if (future == eof) {
+                        break;
+                    }
+                    final List<Post> window = future.get();
+                    writer.write(window);
+                    writer.flush();
+                    final long oldNumPosts = numPosts;
+                    numPosts += window.size();
+                    checkpointer.add(window);
+                    if (checkpointer.getNumPendingPosts() >= checkpointInterval) {
+                        checkpointer.save();
+                    }
+                    if (numPosts / LOG_INTERVAL != oldNumPosts / LOG_INTERVAL) {
+                        LOGGER.info("Enriched {} posts", numPosts);
+                    }
+                }
+                checkpointer.save();
+                return numPosts;
+
+            } catch (final ExecutionException ex) {
+                // Enrichment failed but written posts are fine: checkpoint them before aborting
+                try {
+                    checkpointer.save();
+                } catch (final Throwable ex2) {
+                    ex.getCause().addSuppressed(ex2);
+                }
+                throw ex;
+            }
+
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Operation interrupted", ex);
+
+        } catch (final ExecutionException ex) {
+            Throwables.propagateIfPossible(ex.getCause(), IOException.class);
+            throw Throwables.propagate(ex.getCause());
+
+        } finally {
+            executor.shutdownNow(); // abort reader and enrichment stages on failure
+        }
+    }
+
+    private static final class Checkpointer {
+
+        private final PostWriter writer;
+
+        @Nullable
+        private final Path path;
+
+        private Checkpoint checkpoint;
+
+        private long numPendingPosts;
+
+        @Nullable
+        private String lastPostId;
+
+        Checkpointer(final PostWriter writer, final Checkpoint checkpoint,
+                @Nullable final Path path) {
+            this.writer = writer;
+            this.path = path;
+            this.checkpoint = checkpoint;
+            this.numPendingPosts = 0;
+            this.lastPostId = null;
+        }
+
+        long getNumPendingPosts() {
+            return this.numPendingPosts;
+        }
+
+        void add(final List<Post> window) {
+            if (!window.isEmpty()) {
+                this.numPendingPosts += window.size();
+                this.lastPostId = window.get(window.size() - 1).getId();
+            }
+        }
+
+        void save() throws IOException {
+            if (this.path != null && this.numPendingPosts > 0) {
+                this.checkpoint = this.checkpoint.advance(this.numPendingPosts, this.lastPostId,
+                        this.writer.sync());
+                this.checkpoint.write(this.path);
+                this.numPendingPosts = 0;
+                LOGGER.debug("Saved {}", this.checkpoint);
+            }
+        }
+
+    }
+
+}
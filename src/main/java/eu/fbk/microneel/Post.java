@@ -1,40 +1,52 @@
 package eu.fbk.microneel;
 
 import java.io.IOException;
-import java.io.Reader;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
-import java.io.Writer;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Date;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Objects;
 import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
 
 import javax.annotation.Nullable;
 
 import com.google.common.base.Preconditions;
-import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Ordering;
-import com.google.common.io.CharStreams;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
-import eu.fbk.utils.core.IO;
+import eu.fbk.microneel.util.StringPool;
 
 public final class Post implements Serializable {
 
     private static final long serialVersionUID = 1L;
 
+    private static final int ALL_FIELDS = (1 << Field.values().length) - 1;
+
+    private static final int ANNOTATION_FIELDS = Field.MENTIONS.mask | Field.HASHTAGS.mask
+            | Field.URLS.mask;
+
+    private static final String TWITTER_PREFIX = "twitter:";
+
     private final String id;
 
+    private final long twitterId;
+
     @Nullable
     private Date date;
 
@@ -53,44 +65,84 @@ public final class Post implements Serializable {
     @Nullable
     private String authorUri;
 
-    private final List<Annotation> annotations;
+    private final AnnotationIndex<Annotation> annotations;
+
+    private final AnnotationIndex<MentionAnnotation> mentions;
+
+    private final AnnotationIndex<HashtagAnnotation> hashtags;
+
+    private final AnnotationIndex<UrlAnnotation> urls;
+
+    @Nullable
+    private transient byte[] encodedJson;
+
+    private transient volatile int encodedFields;
 
     public Post(final JsonObject json) {
         this.id = json.get("id").getAsString();
+        this.twitterId = parseTwitterId(this.id);
         this.date = json.has("date") ? new Date(json.get("date").getAsLong() * 1000) : null;
         this.text = json.has("text") ? json.get("text").getAsString() : null;
         final JsonObject author = json.getAsJsonObject("author");
-        this.authorUsername = author.has("username") ? author.get("username").getAsString() : null;
-        this.authorFullName = author.has("fullName") ? author.get("fullName").getAsString() : null;
-        this.authorDescription = author.has("description") ? author.get("description").getAsString()
-                : null;
-        this.authorUri = author.has("uri") ? author.get("uri").getAsString() : null;
+        this.authorUsername = author.has("username")
+                ? intern(author.get("username").getAsString()) : null;
+        this.authorFullName = author.has("fullName")
+                ? intern(author.get("fullName").getAsString()) : null;
+        this.authorDescription = author.has("description")
+                ? intern(author.get("description").getAsString()) : null;
+        this.authorUri = author.has("uri") ? intern(author.get("uri").getAsString()) : null;
         final JsonArray array = json.getAsJsonArray("annotations");
-        this.annotations = new ArrayList<>();
+        this.annotations = new AnnotationIndex<>();
+        this.mentions = new AnnotationIndex<>();
+        this.hashtags = new AnnotationIndex<>();
+        this.urls = new AnnotationIndex<>();
         for (final JsonElement element : array) {
             final JsonObject e = (JsonObject) element;
             if (e.has("username")) {
-                this.annotations.add(new MentionAnnotation(e));
+                index(new MentionAnnotation(e));
             } else if (e.has("hashtag")) {
-                this.annotations.add(new HashtagAnnotation(e));
+                index(new HashtagAnnotation(e));
             } else if (e.has("url")) {
-                this.annotations.add(new UrlAnnotation(e));
+                index(new UrlAnnotation(e));
             } else {
                 throw new IllegalArgumentException("Unknown annotation: " + e);
             }
         }
-        Collections.sort(this.annotations);
+    }
+
+    public Post(final JsonReader reader) throws IOException {
+        this(reader, ALL_FIELDS);
+    }
+
+    private Post(final JsonReader reader, final int fields) throws IOException {
+        final List<JsonAnnotation> annotations = new ArrayList<>();
+        this.id = readJson(reader, fields, annotations);
+        this.twitterId = parseTwitterId(this.id);
+        this.annotations = new AnnotationIndex<>();
+        this.mentions = new AnnotationIndex<>();
+        this.hashtags = new AnnotationIndex<>();
+        this.urls = new AnnotationIndex<>();
+        for (final JsonAnnotation a : annotations) {
+            final Annotation annotation = a.toAnnotation(this, fields);
+            if (annotation != null) {
+                index(annotation);
+            }
+        }
     }
 
     public Post(final String id) {
         this.id = Objects.requireNonNull(id);
+        this.twitterId = parseTwitterId(id);
         this.date = null;
         this.text = null;
         this.authorUsername = null;
         this.authorFullName = null;
         this.authorDescription = null;
         this.authorUri = null;
-        this.annotations = new ArrayList<>();
+        this.annotations = new AnnotationIndex<>();
+        this.mentions = new AnnotationIndex<>();
+        this.hashtags = new AnnotationIndex<>();
+        this.urls = new AnnotationIndex<>();
     }
 
     public String getId() {
@@ -99,34 +151,54 @@ public final class Post implements Serializable {
 
     @Nullable
     public Long getTwitterId() {
-        return this.id.startsWith("twitter:") ? Long.valueOf(this.id.substring(8)) : null;
+        return this.twitterId >= 0 ? this.twitterId : null;
+    }
+
+    /**
+     * Returns the numeric tweet ID of this post as a primitive {@code long}, avoiding boxing. The
+     * ID is parsed once when the post is created, and is available only if the post ID has the
+     * canonical form {@code twitter:<number>}.
+     *
+     * @return the non-negative tweet ID, or -1 if this is not a Twitter post
+     */
+    public long getTwitterIdAsLong() {
+        return this.twitterId;
     }
 
     @Nullable
     public Date getDate() {
+        decode(Field.DATE.mask);
         return this.date;
     }
 
     public void setDate(@Nullable final Date date) {
+        decode(Field.DATE.mask);
         this.date = date;
     }
 
     @Nullable
     public String getText() {
+        decode(Field.TEXT.mask);
         return this.text;
     }
 
     public void setText(@Nullable final String text) {
+        decode(Field.TEXT.mask | ANNOTATION_FIELDS);
         if (!Objects.equals(this.text, text)) {
             if (text == null) {
-                this.annotations.clear();
+                this.annotations.deleteAll();
+                this.mentions.deleteAll();
+                this.hashtags.deleteAll();
+                this.urls.deleteAll();
             } else {
-                for (final Iterator<Annotation> i = this.annotations.iterator(); i.hasNext();) {
-                    final Annotation annotation = i.next();
-                    if (annotation.getEndIndex() > text.length() || !annotation.getText().equals(
-                            text.substring(annotation.getBeginIndex(), annotation.getEndIndex()))) {
-                        i.remove();
-                    }
+                final Predicate<Annotation> filter = annotation -> annotation
+                        .getEndIndex() > text.length()
+                        || !annotation.getText().equals(text.substring(
+                                annotation.getBeginIndex(), annotation.getEndIndex()));
+                if (this.annotations.deleteIf(filter)) {
+                    this.mentions.deleteIf(filter);
+                    this.hashtags.deleteIf(filter);
+                    this.urls.deleteIf(filter);
                 }
             }
             this.text = text;
@@ -135,80 +207,147 @@ public final class Post implements Serializable {
 
     @Nullable
     public String getAuthorUsername() {
+        decode(Field.AUTHOR.mask);
         return this.authorUsername;
     }
 
     public void setAuthorUsername(@Nullable final String authorUsername) {
-        this.authorUsername = authorUsername;
+        decode(Field.AUTHOR.mask);
+        this.authorUsername = intern(authorUsername);
     }
 
     @Nullable
     public String getAuthorFullName() {
+        decode(Field.AUTHOR.mask);
         return this.authorFullName;
     }
 
     @Nullable
     public void setAuthorFullName(@Nullable final String authorFullName) {
-        this.authorFullName = authorFullName;
+        decode(Field.AUTHOR.mask);
+        this.authorFullName = intern(authorFullName);
     }
 
     @Nullable
     public String getAuthorDescription() {
+        decode(Field.AUTHOR.mask);
         return this.authorDescription;
     }
 
     public void setAuthorDescription(@Nullable final String authorDescription) {
-        this.authorDescription = authorDescription;
+        decode(Field.AUTHOR.mask);
+        this.authorDescription = intern(authorDescription);
     }
 
     @Nullable
     public String getAuthorUri() {
+        decode(Field.AUTHOR.mask);
         return this.authorUri;
     }
 
     public void setAuthorUri(@Nullable final String authorUri) {
-        this.authorUri = authorUri;
+        decode(Field.AUTHOR.mask);
+        this.authorUri = intern(authorUri);
     }
 
+    /**
+     * Returns an unmodifiable view of the annotations of this post, sorted by begin index. The
+     * view reflects later changes to the post annotations; modifying them while iterating over
+     * the view results in a {@code ConcurrentModificationException}.
+     *
+     * @return a view over the annotations of this post
+     */
     public List<Annotation> getAnnotations() {
-        return ImmutableList.copyOf(this.annotations);
+        decode(ANNOTATION_FIELDS);
+        return this.annotations;
     }
 
+    /**
+     * Returns an unmodifiable view of the annotations of this post having the type specified,
+     * sorted by begin index. Annotations of each type are stored separately, so no filtering nor
+     * copying is performed. Same considerations of {@link #getAnnotations()} apply.
+     *
+     * @param annotationClazz
+     *            the annotation type
+     * @return a view over the annotations of the type specified
+     */
     public <T extends Annotation> List<T> getAnnotations(final Class<T> annotationClazz) {
-        Objects.requireNonNull(annotationClazz);
-        final List<T> result = new ArrayList<>();
-        for (final Annotation annotation : this.annotations) {
-            if (annotationClazz.isInstance(annotation)) {
-                result.add(annotationClazz.cast(annotation));
-            }
-        }
-        return result;
+        decode(ANNOTATION_FIELDS);
+        return index(annotationClazz);
+    }
+
+    /**
+     * Returns an unmodifiable view of the annotations of this post overlapping the span of text
+     * specified, sorted by begin index. Same considerations of {@link #getAnnotations()} apply.
+     *
+     * @param beginIndex
+     *            the begin index of the span, inclusive
+     * @param endIndex
+     *            the end index of the span, exclusive
+     * @return a view over the overlapping annotations
+     */
+    public List<Annotation> getAnnotations(final int beginIndex, final int endIndex) {
+        Preconditions.checkArgument(beginIndex <= endIndex);
+        decode(ANNOTATION_FIELDS);
+        return this.annotations.findOverlapping(beginIndex, endIndex);
     }
 
     @Nullable
     public Annotation getAnnotation(final int index) {
-        for (final Annotation annotation : this.annotations) {
-            if (index >= annotation.getBeginIndex() && index < annotation.getEndIndex()) {
-                return annotation;
-            }
-        }
-        return null;
+        decode(ANNOTATION_FIELDS);
+        return this.annotations.find(index);
     }
 
+    @Nullable
     public <T extends Annotation> T getAnnotation(final int index, final Class<T> annotationClazz) {
-        for (final Annotation annotation : this.annotations) {
-            if (annotationClazz.isInstance(annotation) && index >= annotation.getBeginIndex()
-                    && index < annotation.getEndIndex()) {
-                return annotationClazz.cast(annotation);
-            }
-        }
-        return null;
+        decode(ANNOTATION_FIELDS);
+        return index(annotationClazz).find(index);
+    }
+
+    /**
+     * Calls the consumer specified for each mention annotation of this post, in order, without
+     * allocating any object.
+     *
+     * @param consumer
+     *            the consumer to call
+     */
+    public void forEachMention(final Consumer<? super MentionAnnotation> consumer) {
+        decode(ANNOTATION_FIELDS);
+        this.mentions.forEach(consumer);
     }
 
-    public <T extends Annotation> T addAnnotation(final Class<T> annotationClazz,
+    /**
+     * Calls the consumer specified for each hashtag annotation of this post, in order, without
+     * allocating any object.
+     *
+     * @param consumer
+     *            the consumer to call
+     */
+    public void forEachHashtag(final Consumer<? super HashtagAnnotation> consumer) {
+        decode(ANNOTATION_FIELDS);
+        this.hashtags.forEach(consumer);
+    }
+
+    /**
+     * Calls the consumer specified for each URL annotation of this post, in order, without
+     * allocating any object.
+     *
+     * @param consumer
+     *            the consumer to call
+     */
+    public void forEachUrl(final Consumer<? super UrlAnnotation> consumer) {
+        decode(ANNOTATION_FIELDS);
+        this.urls.forEach(consumer);
+    }
+
+    // Annotations are added / removed holding the post lock (also used for lazy decoding), so
+    // that enrichers writing different annotation types may run concurrently on the same post
+
+    public synchronized <T extends Annotation> T addAnnotation(final Class<T> annotationClazz,
             final int beginIndex, final int endIndex) {
 
         // Check parameters and lack of overlapping annotations
+        decode(Field.TEXT.mask | ANNOTATION_FIELDS);
         Preconditions.checkState(this.text != null, "Post text not specified yet");
         Preconditions.checkArgument(beginIndex >= 0);
         Preconditions.checkArgument(endIndex <= this.text.length());
@@ -217,15 +356,14 @@ public final class Post implements Serializable {
 
         // Check for an overlapping annotations: return it if it exactly matches the requested
         // annotation, otherwise throw an exception
-        for (final Annotation annotation : this.annotations) {
-            if (annotation.getBeginIndex() < endIndex && annotation.getEndIndex() > beginIndex) {
-                if (annotation.getBeginIndex() == beginIndex && annotation.getEndIndex() == endIndex
-                        && annotationClazz.isInstance(annotation.getClass())) {
-                    return annotationClazz.cast(annotation);
-                }
-                throw new IllegalArgumentException("Annotation already overlapping with inteval "
-                        + beginIndex + "," + endIndex + ": " + annotation);
+        for (final Annotation annotation : this.annotations.findOverlapping(beginIndex,
+                endIndex)) {
+            if (annotation.getBeginIndex() == beginIndex && annotation.getEndIndex() == endIndex
+                    && annotationClazz.isInstance(annotation)) {
+                return annotationClazz.cast(annotation);
             }
+            throw new IllegalArgumentException("Annotation already overlapping with interval "
+                    + beginIndex + "," + endIndex + ": " + annotation);
         }
 
         // Create the new annotation
@@ -241,13 +379,20 @@ public final class Post implements Serializable {
         }
 
         // Index and return the new annotation
-        this.annotations.add(annotation);
-        Collections.sort(this.annotations);
+        index(annotation);
         return annotationClazz.cast(annotation);
     }
 
-    public boolean removeAnnotation(final Annotation annotation) {
-        return this.annotations.remove(Objects.requireNonNull(annotation));
+    synchronized void addAnnotation(final Annotation annotation) {
+        Preconditions.checkArgument(annotation.getPost() == this);
+        decode(ANNOTATION_FIELDS);
+        index(annotation);
+    }
+
+    public synchronized boolean removeAnnotation(final Annotation annotation) {
+        decode(ANNOTATION_FIELDS);
+        return this.annotations.delete(Objects.requireNonNull(annotation))
+                && index(annotation.getClass()).delete(annotation);
     }
 
     @Override
@@ -268,6 +413,7 @@ public final class Post implements Serializable {
     }
 
     public JsonObject toJson() {
+        decode(ALL_FIELDS);
         final JsonObject json = new JsonObject();
         json.addProperty("id", this.id);
         if (this.date != null) {
@@ -298,40 +444,402 @@ public final class Post implements Serializable {
         return json;
     }
 
+    public void toJson(final JsonWriter writer) throws IOException {
+        decode(ALL_FIELDS);
+        writer.beginObject();
+        writer.name("id").value(this.id);
+        if (this.date != null) {
+            writer.name("date").value(this.date.getTime() / 1000);
+        }
+        if (this.text != null) {
+            writer.name("text").value(this.text);
+        }
+        writer.name("author").beginObject();
+        if (this.authorUsername != null) {
+            writer.name("username").value(this.authorUsername);
+        }
+        if (this.authorFullName != null) {
+            writer.name("fullName").value(this.authorFullName);
+        }
+        if (this.authorDescription != null) {
+            writer.name("description").value(this.authorDescription);
+        }
+        if (this.authorUri != null) {
+            writer.name("uri").value(this.authorUri);
+        }
+        writer.endObject();
+        writer.name("annotations").beginArray();
+        for (final Annotation annotation : this.annotations) {
+            annotation.toJson(writer);
+        }
+        writer.endArray();
+        writer.endObject();
+    }
+
     @Override
     public String toString() {
-        return toJson().toString();
+        return toJsonString(this::toJson);
     }
 
     public static List<Post> read(final Path path) throws IOException {
+        return read(path, 1);
+    }
+
+    public static List<Post> read(final Path path, final int parallelism) throws IOException {
         final List<Post> posts = new ArrayList<>();
-        try (Reader reader = IO.utf8Reader(IO.buffer(IO.read(path.toAbsolutePath().toString())))) {
-            final Gson gson = new Gson();
-            for (String line : CharStreams.readLines(reader)) {
-                line = line.trim();
-                if (!line.isEmpty() && !line.startsWith("#")) {
-                    try {
-                        final Long id = Long.parseLong(line);
-                        posts.add(new Post("twitter:" + id.toString()));
-                    } catch (final NumberFormatException ex) {
-                        final JsonObject json = gson.fromJson(line, JsonObject.class);
-                        posts.add(new Post(json));
+        try (PostReader reader = PostReader.open(path, parallelism)) {
+            Iterators.addAll(posts, reader);
+        }
+        return posts;
+    }
+
+    public static List<Post> read(final Path path, final Set<Field> fields) throws IOException {
+        final List<Post> posts = new ArrayList<>();
+        try (PostReader reader = PostReader.open(path, 1, fields, false)) {
+            Iterators.addAll(posts, reader);
+        }
+        return posts;
+    }
+
+    public static Stream<Post> stream(final Path path) throws IOException {
+        return PostReader.open(path).stream();
+    }
+
+    public static void write(final Path path, final Iterable<Post> posts) throws IOException {
+        try (PostWriter writer = PostWriter.open(path)) {
+            writer.write(posts);
+        }
+    }
+
+    static Post fromJson(final String json, final int fields, final boolean lazy) {
+        try {
+            if (!lazy || fields == 0) {
+                return new Post(newJsonReader(json), fields);
+            }
+            final Post post = new Post(newJsonReader(json), 0); // only reads the ID
+            post.encodedJson = json.getBytes(StandardCharsets.UTF_8);
+            post.encodedFields = fields;
+            return post;
+        } catch (final IOException | IllegalStateException | NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid post JSON: " + json, ex);
+        }
+    }
+
+    static int toMask(final Set<Field> fields) {
+        int mask = 0;
+        for (final Field field : fields) {
+            mask |= field.mask;
+        }
+        return (mask & ANNOTATION_FIELDS) != 0 ? mask | Field.TEXT.mask : mask;
+    }
+
+    @Nullable
+    private static String intern(@Nullable final String string) {
+        return StringPool.getDefault().intern(string);
+    }
+
+    private static long parseTwitterId(final String id) {
+        final int length = id.length();
+        final int start = TWITTER_PREFIX.length();
+        if (length == start || length > start + 1 && id.charAt(start) == '0'
+                || !id.startsWith(TWITTER_PREFIX)) {
+            return -1; // not a Twitter ID, or not in canonical form
+        }
+        long result = 0;
+        for (int i = start; i < length; ++i) {
+            final int digit = id.charAt(i) - '0';
+            if (digit < 0 || digit > 9 || result > (Long.MAX_VALUE - digit) / 10) {
+                return -1;
+            }
+            result = result * 10 + digit;
+        }
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T extends Annotation> AnnotationIndex<T> index(final Class<T> annotationClazz) {
+        if (annotationClazz == MentionAnnotation.class) {
+            return (AnnotationIndex<T>) this.mentions;
+        } else if (annotationClazz == HashtagAnnotation.class) {
+            return (AnnotationIndex<T>) this.hashtags;
+        } else if (annotationClazz == UrlAnnotation.class) {
+            return (AnnotationIndex<T>) this.urls;
+        } else if (annotationClazz == Annotation.class) {
+            return (AnnotationIndex<T>) this.annotations;
+        }
+        throw new IllegalArgumentException("Unknown annotation class: " + annotationClazz);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void index(final Annotation annotation) {
+        this.annotations.insert(annotation);
+        ((AnnotationIndex<Annotation>) index(annotation.getClass())).insert(annotation);
+    }
+
+    private void decode(final int fields) {
+        if ((this.encodedFields & fields) != 0) {
+            decodeHelper(fields);
+        }
+    }
+
+    private synchronized void decodeHelper(int fields) {
+
+        // Determine the fields to decode (annotations are decoded together and require text)
+        fields &= this.encodedFields;
+        if (fields == 0) {
+            return; // decoded concurrently by another thread
+        }
+        if ((fields & ANNOTATION_FIELDS) != 0) {
+            fields |= this.encodedFields & (ANNOTATION_FIELDS | Field.TEXT.mask);
+        }
+
+        // Parse the encoded JSON again, this time extracting the selected fields
+        final List<JsonAnnotation> annotations = new ArrayList<>();
+        try {
+            readJson(newJsonReader(new String(this.encodedJson, StandardCharsets.UTF_8)), fields,
+                    annotations);
+        } catch (final IOException ex) {
+            throw new Error(ex); // cannot happen, as the JSON was already parsed successfully
+        }
+        for (final JsonAnnotation a : annotations) {
+            final Annotation annotation = a.toAnnotation(this, fields);
+            if (annotation != null) {
+                index(annotation);
+            }
+        }
+
+        // Update the pending fields, dropping the encoded JSON if no more needed
+        final int encodedFields = this.encodedFields & ~fields;
+        if (encodedFields == 0) {
+            this.encodedJson = null;
+        }
+        this.encodedFields = encodedFields;
+    }
+
+    private String readJson(final JsonReader reader, final int fields,
+            final List<JsonAnnotation> annotations) throws IOException {
+        String id = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            final String name = reader.nextName();
+            if (name.equals("id")) {
+                id = nextString(reader);
+            } else if (name.equals("date") && (fields & Field.DATE.mask) != 0) {
+                this.date = reader.peek() == JsonToken.NULL ? null
+                        : new Date(reader.nextLong() * 1000);
+            } else if (name.equals("text") && (fields & Field.TEXT.mask) != 0) {
+                this.text = nextString(reader);
+            } else if (name.equals("author") && (fields & Field.AUTHOR.mask) != 0
+                    && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    final String authorName = reader.nextName();
+                    if (authorName.equals("username")) {
+                        this.authorUsername = intern(nextString(reader));
+                    } else if (authorName.equals("fullName")) {
+                        this.authorFullName = intern(nextString(reader));
+                    } else if (authorName.equals("description")) {
+                        this.authorDescription = intern(nextString(reader));
+                    } else if (authorName.equals("uri")) {
+                        this.authorUri = intern(nextString(reader));
+                    } else {
+                        reader.skipValue();
                     }
                 }
+                reader.endObject();
+            } else if (name.equals("annotations") && (fields & ANNOTATION_FIELDS) != 0
+                    && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    annotations.add(new JsonAnnotation(reader));
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
             }
         }
-        return posts;
+        reader.endObject();
+        if (id == null) {
+            throw new IllegalArgumentException("No post ID at " + reader);
+        }
+        return id;
     }
 
-    public static void write(final Path path, final Iterable<Post> posts) throws IOException {
-        try (Writer writer = IO.utf8Writer(IO.buffer(IO.write(path.toAbsolutePath().toString())))) {
-            final Gson gson = new GsonBuilder().disableHtmlEscaping().create();
-            for (final Post post : posts) {
-                final JsonObject json = post.toJson();
-                writer.write(gson.toJson(json));
-                writer.write("\n");
+    private void writeObject(final ObjectOutputStream out) throws IOException {
+        decode(ALL_FIELDS);
+        out.defaultWriteObject();
+    }
+
+    private static JsonReader newJsonReader(final String json) {
+        final JsonReader reader = new JsonReader(new StringReader(json));
+        reader.setLenient(true);
+        return reader;
+    }
+
+    @Nullable
+    private static String nextString(final JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextString();
+    }
+
+    private static String toJsonString(final JsonWritable writable) {
+        final StringWriter result = new StringWriter();
+        final JsonWriter writer = new JsonWriter(result);
+        writer.setLenient(true);
+        try {
+            writable.toJson(writer);
+        } catch (final IOException ex) {
+            throw new Error(ex); // cannot happen when writing to a String
+        }
+        return result.toString();
+    }
+
+    private interface JsonWritable {
+
+        void toJson(JsonWriter writer) throws IOException;
+
+    }
+
+    /**
+     * The attributes of an annotation being read by {@link Post#Post(JsonReader)}, whose type and
+     * text can be determined only after all its JSON properties and the post text are known.
+     */
+    private static final class JsonAnnotation {
+
+        private int begin;
+
+        private int end;
+
+        @Nullable
+        private String username;
+
+        @Nullable
+        private String hashtag;
+
+        @Nullable
+        private String url;
+
+        @Nullable
+        private String fullName;
+
+        @Nullable
+        private String description;
+
+        @Nullable
+        private String uri;
+
+        @Nullable
+        private String tokenization;
+
+        @Nullable
+        private List<String> definitions;
+
+        @Nullable
+        private String resolvedUrl;
+
+        @Nullable
+        private String title;
+
+        JsonAnnotation(final JsonReader reader) throws IOException {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                final String name = reader.nextName();
+                if (name.equals("begin")) {
+                    this.begin = reader.nextInt();
+                } else if (name.equals("end")) {
+                    this.end = reader.nextInt();
+                } else if (name.equals("username")) {
+                    this.username = nextString(reader);
+                } else if (name.equals("hashtag")) {
+                    this.hashtag = nextString(reader);
+                } else if (name.equals("url")) {
+                    this.url = nextString(reader);
+                } else if (name.equals("fullName")) {
+                    this.fullName = nextString(reader);
+                } else if (name.equals("description")) {
+                    this.description = nextString(reader);
+                } else if (name.equals("uri")) {
+                    this.uri = nextString(reader);
+                } else if (name.equals("tokenization")) {
+                    this.tokenization = nextString(reader);
+                } else if (name.equals("resolvedUrl")) {
+                    this.resolvedUrl = nextString(reader);
+                } else if (name.equals("title")) {
+                    this.title = nextString(reader);
+                } else if (name.equals("definitions") && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                    this.definitions = new ArrayList<>();
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        this.definitions.add(reader.nextString());
+                    }
+                    reader.endArray();
+                } else {
+                    reader.skipValue();
+                }
             }
+            reader.endObject();
         }
+
+        @Nullable
+        Annotation toAnnotation(final Post post, final int fields) {
+            if (this.username != null) {
+                return (fields & Field.MENTIONS.mask) == 0 ? null
+                        : post.new MentionAnnotation(this.begin, this.end, this.username,
+                        this.fullName, this.description, this.uri);
+            } else if (this.hashtag != null) {
+                return (fields & Field.HASHTAGS.mask) == 0 ? null
+                        : post.new HashtagAnnotation(this.begin, this.end, this.hashtag,
+                        this.tokenization, this.definitions);
+            } else if (this.url != null) {
+                return (fields & Field.URLS.mask) == 0 ? null
+                        : post.new UrlAnnotation(this.begin, this.end, this.resolvedUrl,
+                        this.title);
+            } else {
+                throw new IllegalArgumentException("Unknown annotation at " + this.begin + ","
+                        + this.end + " in post " + post.id);
+            }
+        }
+
+    }
+
+    /**
+     * A group of {@code Post} fields that can be selectively decoded when reading posts.
+     * <p>
+     * Fields are used to specify a projection when reading posts (see
+     * {@link Post#read(Path, Set)} and {@link PostReader#open(Path, int, Set, boolean)}): fields
+     * not in the projection are skipped while parsing and are left unset in the returned posts.
+     * The post ID is always decoded. Decoding annotations always requires decoding the post text.
+     * </p>
+     */
+    public enum Field {
+
+        /** The post date. */
+        DATE,
+
+        /** The post text. */
+        TEXT,
+
+        /** The author username, full name, description and URI. */
+        AUTHOR,
+
+        /** The mention annotations, with their attributes. */
+        MENTIONS,
+
+        /** The hashtag annotations, with their attributes. */
+        HASHTAGS,
+
+        /** The URL annotations, with their attributes. */
+        URLS;
+
+        final int mask;
+
+        private Field() {
+            this.mask = 1 << ordinal();
+        }
+
     }
 
     /**
@@ -419,6 +927,27 @@ public final class Post implements Serializable {
             return json;
         }
 
+        /**
+         * Writes the JSON representation of this annotation to the {@code JsonWriter} supplied.
+         * The representation is the same returned by {@link #toJson()}, but it is emitted
+         * directly without building an intermediate {@code JsonObject}.
+         *
+         * @param writer
+         *            the writer where to emit the JSON representation of this annotation
+         * @throws IOException
+         *             on failure
+         */
+        public final void toJson(final JsonWriter writer) throws IOException {
+            writer.beginObject();
+            toJsonProperties(writer);
+            writer.endObject();
+        }
+
+        void toJsonProperties(final JsonWriter writer) throws IOException {
+            writer.name("begin").value(this.beginIndex);
+            writer.name("end").value(this.endIndex);
+        }
+
         /**
          * {@inheritDoc} Annotations are sorted based on begin index.
          */
@@ -433,7 +962,7 @@ public final class Post implements Serializable {
          */
         @Override
         public String toString() {
-            return toJson().toString();
+            return toJsonString(this::toJson);
         }
 
     }
@@ -455,21 +984,32 @@ public final class Post implements Serializable {
 
         MentionAnnotation(final JsonObject json) {
             super(json);
-            this.username = json.get("username").getAsString();
-            this.fullName = json.has("fullName") ? json.get("fullName").getAsString() : null;
-            this.description = json.has("description") ? json.get("description").getAsString()
+            this.username = intern(json.get("username").getAsString());
+            this.fullName = json.has("fullName") ? intern(json.get("fullName").getAsString())
                     : null;
-            this.uri = json.has("uri") ? json.get("uri").getAsString() : null;
+            this.description = json.has("description")
+                    ? intern(json.get("description").getAsString()) : null;
+            this.uri = json.has("uri") ? intern(json.get("uri").getAsString()) : null;
         }
 
         MentionAnnotation(final int beginIndex, final int endIndex) {
             super(beginIndex, endIndex);
-            this.username = getText().substring(1);
+            this.username = intern(getText().substring(1));
             this.fullName = null;
             this.description = null;
             this.uri = null;
         }
 
+        MentionAnnotation(final int beginIndex, final int endIndex, final String username,
+                @Nullable final String fullName, @Nullable final String description,
+                @Nullable final String uri) {
+            super(beginIndex, endIndex);
+            this.username = intern(username);
+            this.fullName = intern(fullName);
+            this.description = intern(description);
+            this.uri = intern(uri);
+        }
+
         public String getUsername() {
             return this.username;
         }
@@ -480,7 +1020,7 @@ public final class Post implements Serializable {
         }
 
         public void setFullName(@Nullable final String fullName) {
-            this.fullName = fullName;
+            this.fullName = intern(fullName);
         }
 
         @Nullable
@@ -489,7 +1029,7 @@ public final class Post implements Serializable {
         }
 
         public void setDescription(@Nullable final String description) {
-            this.description = description;
+            this.description = intern(description);
         }
 
         @Nullable
@@ -498,7 +1038,7 @@ public final class Post implements Serializable {
         }
 
         public void setUri(@Nullable final String uri) {
-            this.uri = uri;
+            this.uri = intern(uri);
         }
 
         @Override
@@ -517,6 +1057,21 @@ public final class Post implements Serializable {
             return json;
         }
 
+        @Override
+        void toJsonProperties(final JsonWriter writer) throws IOException {
+            super.toJsonProperties(writer);
+            writer.name("username").value(this.username);
+            if (this.fullName != null) {
+                writer.name("fullName").value(this.fullName);
+            }
+            if (this.description != null) {
+                writer.name("description").value(this.description);
+            }
+            if (this.uri != null) {
+                writer.name("uri").value(this.uri);
+            }
+        }
+
     }
 
     public final class HashtagAnnotation extends Annotation {
@@ -554,6 +1109,14 @@ public final class Post implements Serializable {
             this.definitions = null;
         }
 
+        HashtagAnnotation(final int beginIndex, final int endIndex, final String hashtag,
+                @Nullable final String tokenization, @Nullable final Iterable<String> definitions) {
+            super(beginIndex, endIndex);
+            this.hashtag = hashtag;
+            this.tokenization = tokenization;
+            this.definitions = definitions == null ? null : ImmutableSet.copyOf(definitions);
+        }
+
         public String getHashtag() {
             return this.hashtag;
         }
@@ -593,6 +1156,22 @@ public final class Post implements Serializable {
             return json;
         }
 
+        @Override
+        void toJsonProperties(final JsonWriter writer) throws IOException {
+            super.toJsonProperties(writer);
+            writer.name("hashtag").value(this.hashtag);
+            if (this.tokenization != null) {
+                writer.name("tokenization").value(this.tokenization);
+            }
+            if (this.definitions != null) {
+                writer.name("definitions").beginArray();
+                for (final String definition : Ordering.natural().sortedCopy(this.definitions)) {
+                    writer.value(definition);
+                }
+                writer.endArray();
+            }
+        }
+
     }
 
     public final class UrlAnnotation extends Annotation {
@@ -616,6 +1195,13 @@ public final class Post implements Serializable {
             this.title = null;
         }
 
+        UrlAnnotation(final int beginIndex, final int endIndex,
+                @Nullable final String resolvedUrl, @Nullable final String title) {
+            super(beginIndex, endIndex);
+            this.resolvedUrl = resolvedUrl;
+            this.title = title;
+        }
+
         public String getUrl() {
             return getText();
         }
@@ -651,6 +1237,18 @@ public final class Post implements Serializable {
             return json;
         }
 
+        @Override
+        void toJsonProperties(final JsonWriter writer) throws IOException {
+            super.toJsonProperties(writer);
+            writer.name("url").value(getUrl());
+            if (this.resolvedUrl != null) {
+                writer.name("resolvedUrl").value(this.resolvedUrl);
+            }
+            if (this.title != null) {
+                writer.name("title").value(this.title);
+            }
+        }
+
     }
 
 }
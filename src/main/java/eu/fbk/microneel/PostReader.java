@@ -0,0 +1,334 @@
+package eu.fbk.microneel;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.io.ByteStreams;
+
+import eu.fbk.microneel.Post.Field;
+import eu.fbk.utils.core.IO;
+
+/**
+ * An iterator over the posts stored in a file, which are read and parsed one at a time.
+ * <p>
+ * A {@code PostReader} accepts the same inputs of {@link Post#read(Path)}. Files whose name ends
+ * in {@code .bin} (possibly followed by a compression extension, e.g., {@code .bin.gz}) are read
+ * using the compact binary format produced by {@link PostWriter}. Other files are read as text,
+ * with one entry per line, where each entry is either a bare numeric tweet ID or the JSON
+ * representation of a post, with empty lines and lines starting with {@code #} (comments) being
+ * ignored. Differently from {@link Post#read(Path)}, posts are never materialized all together,
+ * so that arbitrarily large files can be processed in bounded memory. {@code IOException}s raised
+ * while reading are propagated wrapped in unchecked exceptions. Readers must be closed after use.
+ * </p>
+ * <p>
+ * Parsing of text files can be optionally parallelized (see {@link #open(Path, int)}). In that
+ * case, lines are read and split into chunks by the thread consuming the reader, while the chunks
+ * are parsed by a dedicated fork-join pool. Posts are still returned in the same order they
+ * appear in the file, and the number of chunks being parsed at any time is bounded, so that
+ * memory stays bounded. Binary files are always decoded sequentially, as decoding a record
+ * depends on the records preceding it.
+ * </p>
+ * <p>
+ * Posts can be read using a projection, i.e., a set of {@link Field}s to decode: other fields are
+ * skipped without being decoded into strings. Text files can also be read in lazy mode: each
+ * returned post keeps its encoded representation (a compact UTF-8 byte array), with the fields in
+ * the projection being decoded on first access. Both mechanisms reduce load time and resident
+ * memory in read-mostly workloads that touch only part of the posts' data.
+ * </p>
+ */
+public abstract class PostReader extends AbstractIterator<Post> implements Closeable {
+
+    PostReader() {
+    }
+
+    /**
+     * Opens a reader for the posts in the file specified. Compressed files are supported.
+     *
+     * @param path
+     *            the path of the file to read
+     * @return the created reader, to be closed after use
+     * @throws IOException
+     *             on failure
+     */
+    public static PostReader open(final Path path) throws IOException {
+        return open(path, 1);
+    }
+
+    /**
+     * Opens a reader for the posts in the file specified, parsing them in parallel using the
+     * number of threads specified. Compressed files are supported.
+     *
+     * @param path
+     *            the path of the file to read
+     * @param parallelism
+     *            the number of threads to use for parsing posts; if 1, posts are parsed by the
+     *            thread consuming the reader
+     * @return the created reader, to be closed after use
+     * @throws IOException
+     *             on failure
+     */
+    public static PostReader open(final Path path, final int parallelism) throws IOException {
+        return open(path, parallelism, EnumSet.allOf(Field.class), false);
+    }
+
+    /**
+     * Opens a reader for the posts in the file specified, decoding only the fields specified,
+     * possibly in a lazy way, and using the number of threads specified. Compressed files are
+     * supported.
+     *
+     * @param path
+     *            the path of the file to read
+     * @param parallelism
+     *            the number of threads to use for parsing posts; if 1, posts are parsed by the
+     *            thread consuming the reader
+     * @param fields
+     *            the fields to decode; other fields are left unset in returned posts
+     * @param lazy
+     *            true if fields have to be decoded on first access rather than when reading posts
+     *            (ignored for binary files)
+     * @return the created reader, to be closed after use
+     * @throws IOException
+     *             on failure
+     */
+    public static PostReader open(final Path path, final int parallelism,
+            final Set<Field> fields, final boolean lazy) throws IOException {
+        Preconditions.checkArgument(parallelism > 0, "Invalid parallelism %s", parallelism);
+        final int mask = Post.toMask(fields);
+        final InputStream stream = IO.buffer(IO.read(path.toAbsolutePath().toString()));
+        if (BinaryPostCodec.isBinary(path)) {
+            return new BinaryPostReader(stream, mask);
+        } else {
+            return new JsonPostReader(new BufferedReader(IO.utf8Reader(stream)), parallelism,
+                    mask, lazy);
+        }
+    }
+
+    /**
+     * Returns a sequential {@code Stream} view of the posts returned by this reader. Closing the
+     * stream closes the reader.
+     *
+     * @return the stream of posts
+     */
+    public Stream<Post> stream() {
+        final Spliterator<Post> spliterator = Spliterators.spliteratorUnknownSize(this,
+                Spliterator.ORDERED | Spliterator.NONNULL);
+        return StreamSupport.stream(spliterator, false).onClose(() -> {
+            try {
+                close();
+            } catch (final IOException ex) {
+                throw Throwables.propagate(ex);
+            }
+        });
+    }
+
+    private static final class JsonPostReader extends PostReader {
+
+        private static final int CHUNK_SIZE = 256;
+
+        private final BufferedReader reader;
+
+        @Nullable
+        private final ForkJoinPool pool;
+
+        private final int maxPendingChunks;
+
+        private final int fields;
+
+        private final boolean lazy;
+
+        private final Deque<ForkJoinTask<Post[]>> pendingChunks;
+
+        private Post[] chunk;
+
+        private int chunkIndex;
+
+        private boolean eof;
+
+        JsonPostReader(final BufferedReader reader, final int parallelism, final int fields,
+                final boolean lazy) {
+            this.reader = reader;
+            this.pool = parallelism <= 1 ? null : new ForkJoinPool(parallelism);
+            this.maxPendingChunks = 2 * parallelism;
+            this.fields = fields;
+            this.lazy = lazy;
+            this.pendingChunks = new ArrayDeque<>();
+            this.chunk = new Post[0];
+            this.chunkIndex = 0;
+            this.eof = false;
+        }
+
+        @Override
+        protected Post computeNext() {
+            try {
+                if (this.pool == null) {
+                    final String line = readLine();
+                    return line != null ? parse(line) : endOfData();
+                }
+                while (this.chunkIndex == this.chunk.length) {
+                    submitChunks();
+                    final ForkJoinTask<Post[]> task = this.pendingChunks.poll();
+                    if (task == null) {
+                        return endOfData();
+                    }
+                    this.chunk = task.join();
+                    this.chunkIndex = 0;
+                }
+                final Post post = this.chunk[this.chunkIndex];
+                this.chunk[this.chunkIndex++] = null; // release memory early
+                return post;
+            } catch (final IOException ex) {
+                throw Throwables.propagate(ex);
+            }
+        }
+
+        private void submitChunks() throws IOException {
+            while (!this.eof && this.pendingChunks.size() < this.maxPendingChunks) {
+                final List<String> lines = new ArrayList<>(CHUNK_SIZE);
+                while (lines.size() < CHUNK_SIZE) {
+                    final String line = readLine();
+                    if (line == null) {
+                        this.eof = true;
+                        break;
+                    }
+                    lines.add(line);
+                }
+                if (!lines.isEmpty()) {
+                    this.pendingChunks.add(this.pool.submit(() -> {
+                        final Post[] posts = new Post[lines.size()];
+                        for (int i = 0; i < posts.length; ++i) {
+                            posts[i] = parse(lines.get(i));
+                        }
+                        return posts;
+                    }));
+                }
+            }
+        }
+
+        @Nullable
+        private String readLine() throws IOException {
+            String line;
+            while ((line = this.reader.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    return line;
+                }
+            }
+            return null;
+        }
+
+        private Post parse(final String line) {
+            // Dispatch on the first char (lines are not empty): digits for a bare ID, JSON else
+            final char c = line.charAt(0);
+            if (c >= '0' && c <= '9') {
+                return new Post("twitter:" + Long.parseLong(line));
+            }
+            return Post.fromJson(line, this.fields, this.lazy);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (this.pool != null) {
+                this.pool.shutdownNow();
+            }
+            this.reader.close();
+        }
+
+    }
+
+    private static final class BinaryPostReader extends PostReader {
+
+        private final InputStream stream;
+
+        private final BinaryPostCodec.Decoder decoder;
+
+        private final int fields;
+
+        private byte[] buffer;
+
+        BinaryPostReader(final InputStream stream, final int fields) {
+            this.stream = stream;
+            this.fields = fields;
+            this.decoder = new BinaryPostCodec.Decoder();
+            this.buffer = new byte[4096];
+        }
+
+        @Override
+        protected Post computeNext() {
+            try {
+                while (true) {
+                    final int length = readLength();
+                    if (length < 0) {
+                        return endOfData();
+                    } else if (length > 0) {
+                        if (length > this.buffer.length) {
+                            this.buffer = new byte[Math.max(length, this.buffer.length * 2)];
+                        }
+                        ByteStreams.readFully(this.stream, this.buffer, 0, length);
+                        return this.decoder.decode(ByteBuffer.wrap(this.buffer, 0, length),
+                                this.fields);
+                    }
+                    final byte[] magic = new byte[BinaryPostCodec.MAGIC.length];
+                    ByteStreams.readFully(this.stream, magic);
+                    if (!Arrays.equals(magic, BinaryPostCodec.MAGIC)) {
+                        throw new IOException("Invalid or unsupported binary post file");
+                    }
+                    this.decoder.reset(); // a new segment with its own dictionary starts
+                }
+            } catch (final IOException ex) {
+                throw Throwables.propagate(ex);
+            }
+        }
+
+        private int readLength() throws IOException {
+            int result = 0;
+            for (int shift = 0;; shift += 7) {
+                final int b = this.stream.read();
+                if (b < 0) {
+                    if (shift == 0) {
+                        return -1;
+                    }
+                    throw new EOFException("Truncated binary post file");
+                }
+                result |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    if (result < 0) {
+                        throw new IOException("Corrupted binary post file");
+                    }
+                    return result;
+                } else if (shift >= 28) {
+                    throw new IOException("Corrupted binary post file"); // more than 5 bytes
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.stream.close();
+        }
+
+    }
+
+}
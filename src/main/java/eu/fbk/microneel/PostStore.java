@@ -0,0 +1,523 @@
+package eu.fbk.microneel;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import eu.fbk.microneel.Post.Field;
+import eu.fbk.utils.core.CommandLine;
+
+/**
+ * A read-only store of posts, memory-mapped from a file and indexed by tweet ID.
+ * <p>
+ * A {@code PostStore} file is created in bulk from any file readable by {@link PostReader} (see
+ * {@link #build(Path, Path)}) and contains: the posts, encoded in the binary format of
+ * {@link PostWriter} but using a shared string dictionary so that each post can be decoded
+ * independently of the others; the string dictionary; and an index of the posts sorted by tweet
+ * ID, consisting of two primitive {@code long} arrays (tweet IDs and post offsets). When opened
+ * (see {@link #open(Path)}), the file is memory-mapped and nothing is loaded in the heap: a post
+ * is retrieved in O(log n) via binary search on the mapped index, decoding only that post (see
+ * {@link #get(long)}), while posts within a tweet ID range can be scanned in ID order (see
+ * {@link #scan(long, long)}). Both operations accept a projection (see
+ * {@link #get(long, Set)} and {@link #scan(long, long, Set)}), so that only the strings of the
+ * fields needed are instantiated. Posts without a tweet ID are not stored. Instances are
+ * thread-safe and must be closed after use.
+ * </p>
+ */
+public final class PostStore implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PostStore.class);
+
+    private static final byte[] MAGIC = new byte[] { 'M', 'N', 'P', 'S', 1 };
+
+    private static final int HEADER_LENGTH = 64;
+
+    private static final long SEGMENT_SIZE = 1L << 30; // 1 GB, as buffers are limited to 2 GB
+
+    private static final Set<Field> ALL_FIELDS = Collections.unmodifiableSet(
+            EnumSet.allOf(Field.class));
+
+    private final Path path;
+
+    private final FileChannel channel;
+
+    private final ByteBuffer[] segments;
+
+    private final int size;
+
+    private final long idsOffset;
+
+    private final long offsetsOffset;
+
+    private final BinaryPostCodec.Decoder decoder;
+
+    private PostStore(final Path path, final FileChannel channel) throws IOException {
+
+        // Read and validate the header
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0) {
+                throw new IOException("Not a post store file: " + path);
+            }
+        }
+        final byte[] magic = new byte[MAGIC.length];
+        header.position(0);
+        header.get(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("Invalid or unsupported post store file: " + path);
+        }
+        this.size = (int) header.getLong(8);
+        final long dictionaryOffset = header.getLong(16);
+        final int dictionarySize = header.getInt(24);
+        final int maxEntryLength = header.getInt(28);
+        this.idsOffset = header.getLong(32);
+        this.offsetsOffset = this.idsOffset + 8L * this.size;
+
+        // Map the file in overlapping segments, so that each entry fits in the segment where
+        // it starts (required for files larger than 2 GB)
+        final long fileSize = channel.size();
+        this.segments = new ByteBuffer[(int) Math.max(1, (fileSize - 1) / SEGMENT_SIZE + 1)];
+        for (int i = 0; i < this.segments.length; ++i) {
+            final long start = i * SEGMENT_SIZE;
+            final long length = Math.min(fileSize - start, SEGMENT_SIZE + maxEntryLength);
+            this.segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+        }
+
+        // Initialize the decoder with a dictionary view over the mapped file
+        this.path = path;
+        this.channel = channel;
+        this.decoder = new BinaryPostCodec.Decoder(new AbstractList<String>() {
+
+            @Override
+            public String get(final int index) {
+                final long offset = getLong(dictionaryOffset + 8L * index);
+                return BinaryPostCodec.Decoder.readUTF8(getBuffer(offset));
+            }
+
+            @Override
+            public int size() {
+                return dictionarySize;
+            }
+
+        });
+    }
+
+    /**
+     * Opens the post store file specified.
+     *
+     * @param path
+     *            the path of the post store file
+     * @return the opened store, to be closed after use
+     * @throws IOException
+     *             on failure
+     */
+    public static PostStore open(final Path path) throws IOException {
+        final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            return new PostStore(path, channel);
+        } catch (final Throwable ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Builds a post store file out of all the posts read from the input file specified. Posts
+     * without a tweet ID are skipped. If multiple posts share the same tweet ID, the last one
+     * in the input file is retained.
+     *
+     * @param inputPath
+     *            the path of the input file, in any format supported by {@link PostReader}
+     * @param storePath
+     *            the path of the post store file to create
+     * @return the number of posts stored
+     * @throws IOException
+     *             on failure
+     */
+    public static int build(final Path inputPath, final Path storePath) throws IOException {
+
+        // Allocate the arrays populating the index, which are grown as needed
+        long[] ids = new long[1024];
+        long[] offsets = new long[1024];
+        int size = 0;
+        int skipped = 0;
+
+        try (PostReader reader = PostReader.open(inputPath);
+                FileChannel channel = FileChannel.open(storePath, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+
+            // Leave room for the header, to be written at the end
+            final DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+            out.write(new byte[HEADER_LENGTH]);
+            long offset = HEADER_LENGTH;
+            int maxEntryLength = 8;
+
+            // Write the posts, using an external dictionary for repeated strings
+            final BinaryPostCodec.Encoder encoder = new BinaryPostCodec.Encoder(true);
+            while (reader.hasNext()) {
+                final Post post = reader.next();
+                final long id = post.getTwitterIdAsLong();
+                if (id < 0) {
+                    ++skipped;
+                    continue;
+                }
+                if (size == ids.length) {
+                    ids = Arrays.copyOf(ids, size * 2);
+                    offsets = Arrays.copyOf(offsets, size * 2);
+                }
+                ids[size] = id;
+                offsets[size] = offset;
+                ++size;
+                final int length = encoder.encode(post);
+                out.write(encoder.getBuffer(), 0, length);
+                offset += length;
+                maxEntryLength = Math.max(maxEntryLength, length);
+            }
+
+            // Write the dictionary strings, followed by the table of their offsets
+            final List<String> dictionary = encoder.getDictionary();
+            final long[] stringOffsets = new long[dictionary.size()];
+            for (int i = 0; i < stringOffsets.length; ++i) {
+                final byte[] bytes = dictionary.get(i).getBytes(StandardCharsets.UTF_8);
+                stringOffsets[i] = offset;
+                int length = 0;
+                for (int value = bytes.length; true; value >>>= 7) {
+                    ++length;
+                    if ((value & ~0x7F) == 0) {
+                        out.write(value);
+                        break;
+                    }
+                    out.write(value & 0x7F | 0x80);
+                }
+                out.write(bytes);
+                length += bytes.length;
+                offset += length;
+                maxEntryLength = Math.max(maxEntryLength, length);
+            }
+            final long dictionaryOffset = offset;
+            for (final long stringOffset : stringOffsets) {
+                out.writeLong(stringOffset);
+            }
+            offset += 8L * stringOffsets.length;
+
+            // Sort the index by tweet ID and then by offset, keeping the last post for each ID
+            sort(ids, offsets, 0, size);
+            int newSize = 0;
+            for (int i = 0; i < size; ++i) {
+                if (i == size - 1 || ids[i] != ids[i + 1]) {
+                    ids[newSize] = ids[i];
+                    offsets[newSize] = offsets[i];
+                    ++newSize;
+                }
+            }
+            final int duplicates = size - newSize;
+            size = newSize;
+
+            // Write the index
+            final long indexOffset = offset;
+            for (int i = 0; i < size; ++i) {
+                out.writeLong(ids[i]);
+            }
+            for (int i = 0; i < size; ++i) {
+                out.writeLong(offsets[i]);
+            }
+            out.flush();
+
+            // Write the header
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            header.put(MAGIC);
+            header.putLong(8, size);
+            header.putLong(16, dictionaryOffset);
+            header.putInt(24, stringOffsets.length);
+            header.putInt(28, maxEntryLength);
+            header.putLong(32, indexOffset);
+            header.position(0);
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+
+            LOGGER.info("Stored {} posts in {} ({} dictionary strings, {} duplicates and {} "
+                    + "non-Twitter posts skipped)", size, storePath, stringOffsets.length,
+                    duplicates, skipped);
+        }
+        return size;
+    }
+
+    /**
+     * Returns the number of posts in the store.
+     *
+     * @return the number of posts
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Checks whether the store contains the post with the tweet ID specified.
+     *
+     * @param twitterId
+     *            the tweet ID
+     * @return true, if the post is stored
+     */
+    public boolean contains(final long twitterId) {
+        final int index = lowerBound(twitterId);
+        return index < this.size && getId(index) == twitterId;
+    }
+
+    /**
+     * Returns the post with the tweet ID specified, decoding it from the mapped file.
+     *
+     * @param twitterId
+     *            the tweet ID
+     * @return the post, or null if the store contains no post with that ID
+     */
+    @Nullable
+    public Post get(final long twitterId) {
+        return get(twitterId, ALL_FIELDS);
+    }
+
+    /**
+     * Returns the post with the tweet ID specified, decoding only the fields specified.
+     *
+     * @param twitterId
+     *            the tweet ID
+     * @param fields
+     *            the fields to decode; other fields are left unset in the returned post
+     * @return the post, or null if the store contains no post with that ID
+     */
+    @Nullable
+    public Post get(final long twitterId, final Set<Field> fields) {
+        final int index = lowerBound(twitterId);
+        return index < this.size && getId(index) == twitterId
+                ? getPost(index, Post.toMask(fields)) : null;
+    }
+
+    /**
+     * Returns the posts whose tweet IDs are in the range specified, sorted by tweet ID. Posts
+     * are decoded as the returned stream is consumed.
+     *
+     * @param minTwitterId
+     *            the minimum tweet ID, inclusive
+     * @param maxTwitterId
+     *            the maximum tweet ID, inclusive
+     * @return a stream of the posts in the range
+     */
+    public Stream<Post> scan(final long minTwitterId, final long maxTwitterId) {
+        return scan(minTwitterId, maxTwitterId, ALL_FIELDS);
+    }
+
+    /**
+     * Returns the posts whose tweet IDs are in the range specified, sorted by tweet ID, decoding
+     * only the fields specified. Posts are decoded as the returned stream is consumed.
+     *
+     * @param minTwitterId
+     *            the minimum tweet ID, inclusive
+     * @param maxTwitterId
+     *            the maximum tweet ID, inclusive
+     * @param fields
+     *            the fields to decode; other fields are left unset in returned posts
+     * @return a stream of the posts in the range
+     */
+    public Stream<Post> scan(final long minTwitterId, final long maxTwitterId,
+            final Set<Field> fields) {
+        final int mask = Post.toMask(fields);
+        final int begin = lowerBound(minTwitterId);
+        final int end = maxTwitterId == Long.MAX_VALUE ? this.size
+                : lowerBound(maxTwitterId + 1);
+        return IntStream.range(begin, Math.max(begin, end)).mapToObj(i -> getPost(i, mask));
+    }
+
+    /**
+     * Returns all the posts in the store, sorted by tweet ID. Posts are decoded as the returned
+     * stream is consumed.
+     *
+     * @return a stream of all the stored posts
+     */
+    public Stream<Post> stream() {
+        return scan(Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "(" + this.path + ", " + this.size + " posts)";
+    }
+
+    private int lowerBound(final long twitterId) {
+        int low = 0;
+        int high = this.size;
+        while (low < high) {
+            final int mid = low + high >>> 1;
+            if (getId(mid) < twitterId) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private long getId(final int index) {
+        return getLong(this.idsOffset + 8L * index);
+    }
+
+    private Post getPost(final int index, final int fields) {
+        final long offset = getLong(this.offsetsOffset + 8L * index);
+        return this.decoder.decode(getBuffer(offset), fields);
+    }
+
+    private long getLong(final long offset) {
+        final int segment = (int) (offset / SEGMENT_SIZE);
+        return this.segments[segment].getLong((int) (offset - segment * SEGMENT_SIZE));
+    }
+
+    private ByteBuffer getBuffer(final long offset) {
+        final int segment = (int) (offset / SEGMENT_SIZE);
+        final ByteBuffer buffer = this.segments[segment].duplicate();
+        buffer.position((int) (offset - segment * SEGMENT_SIZE));
+        return buffer;
+    }
+
+    private static void sort(final long[] keys, final long[] values, final int from,
+            final int to) {
+        sort(keys, values, from, to, 2 * (32 - Integer.numberOfLeadingZeros(to - from)));
+    }
+
+    private static void sort(final long[] keys, final long[] values, int from, int to,
+            int depth) {
+        // Introsort: quicksort with median-of-three pivot, recursing on the smaller partition
+        // and looping on the larger one, switching to heapsort if partitions are unbalanced
+        while (to - from > 16) {
+            if (--depth < 0) {
+                heapsort(keys, values, from, to);
+                return;
+            }
+            final int mid = from + (to - from >>> 1);
+            if (compare(keys, values, mid, from) < 0) {
+                swap(keys, values, mid, from);
+            }
+            if (compare(keys, values, to - 1, from) < 0) {
+                swap(keys, values, to - 1, from);
+            }
+            if (compare(keys, values, to - 1, mid) < 0) {
+                swap(keys, values, to - 1, mid);
+            }
+            swap(keys, values, mid, to - 1); // use the median as pivot, at the end
+            int store = from;
+            for (int i = from; i < to - 1; ++i) {
+                if (compare(keys, values, i, to - 1) < 0) {
+                    swap(keys, values, i, store++);
+                }
+            }
+            swap(keys, values, store, to - 1);
+            if (store - from < to - store - 1) {
+                sort(keys, values, from, store, depth);
+                from = store + 1;
+            } else {
+                sort(keys, values, store + 1, to, depth);
+                to = store;
+            }
+        }
+        for (int i = from + 1; i < to; ++i) {
+            for (int j = i; j > from && compare(keys, values, j - 1, j) > 0; --j) {
+                swap(keys, values, j - 1, j);
+            }
+        }
+    }
+
+    private static void heapsort(final long[] keys, final long[] values, final int from,
+            final int to) {
+        final int size = to - from;
+        for (int i = size / 2 - 1; i >= 0; --i) {
+            siftDown(keys, values, from, i, size);
+        }
+        for (int end = size - 1; end > 0; --end) {
+            swap(keys, values, from, from + end);
+            siftDown(keys, values, from, 0, end);
+        }
+    }
+
+    private static void siftDown(final long[] keys, final long[] values, final int from, int i,
+            final int size) {
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                return;
+            }
+            if (child + 1 < size && compare(keys, values, from + child, from + child + 1) < 0) {
+                ++child;
+            }
+            if (compare(keys, values, from + i, from + child) >= 0) {
+                return;
+            }
+            swap(keys, values, from + i, from + child);
+            i = child;
+        }
+    }
+
+    private static int compare(final long[] keys, final long[] values, final int i, final int j) {
+        final int result = Long.compare(keys[i], keys[j]);
+        return result != 0 ? result : Long.compare(values[i], values[j]);
+    }
+
+    private static void swap(final long[] keys, final long[] values, final int i, final int j) {
+        final long key = keys[i];
+        keys[i] = keys[j];
+        keys[j] = key;
+        final long value = values[i];
+        values[i] = values[j];
+        values[j] = value;
+    }
+
+    public static void main(final String... args) {
+        try {
+            // Parse command line
+            final long ts = System.currentTimeMillis();
+            final CommandLine cmd = CommandLine.parser().withName("microneel-store")
+                    .withHeader("Builds a post store file indexed by tweet ID.")
+                    .withOption("i", "input", "specifies the input FILE with the posts to store",
+                            "FILE", CommandLine.Type.FILE_EXISTING, true, false, true)
+                    .withOption("o", "output", "specifies the post store FILE to create", "FILE",
+                            CommandLine.Type.FILE, true, false, true)
+                    .withLogger(LoggerFactory.getLogger("eu.fbk")).parse(args);
+
+            // Read options
+            final Path inputPath = cmd.getOptionValue("i", Path.class);
+            final Path outputPath = cmd.getOptionValue("o", Path.class);
+
+            // Build the store
+            build(inputPath, outputPath);
+            LOGGER.info("Done in {} ms", System.currentTimeMillis() - ts);
+
+        } catch (final Throwable ex) {
+            // Abort execution, returning appropriate error code
+            CommandLine.fail(ex);
+        }
+    }
+
+}
@@ -0,0 +1,306 @@
+package eu.fbk.microneel;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPOutputStream;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Preconditions;
+import com.google.gson.stream.JsonWriter;
+
+import eu.fbk.utils.core.IO;
+
+/**
+ * A writer emitting posts to a file, one at a time.
+ * <p>
+ * Posts are written either in the JSON lines format also produced by
+ * {@link Post#write(Path, Iterable)}, or in a compact binary format if the file name ends in
+ * {@code .bin} (possibly followed by a compression extension, e.g., {@code .bin.gz}). The binary
+ * format stores repeated author, mention and hashtag strings only once per file, resulting in
+ * files several times smaller and faster to read (see {@link PostReader}). As posts are
+ * serialized as soon as they are supplied, a {@code PostWriter} allows writing arbitrarily large
+ * collections of posts in bounded memory. Writers must be closed after use.
+ * </p>
+ * <p>
+ * Writers opened via {@link #open(Path, long)} are resumable: method {@link #sync()} makes all
+ * the posts written so far durable and returns the current file length, and a later writer may be
+ * opened at that length to append further posts, discarding anything written after it (e.g., the
+ * partial output of a crashed run). Resumable writers support uncompressed and gzip-compressed
+ * files only; in the latter case, each sync ends a gzip member, so that the file remains a valid,
+ * multi-member gzip stream when appended to.
+ * </p>
+ */
+public abstract class PostWriter implements Closeable, Flushable {
+
+    @Nullable
+    private SyncStream syncStream;
+
+    PostWriter() {
+    }
+
+    /**
+     * Opens a writer for the file specified, replacing its content. Compressed files are
+     * supported.
+     *
+     * @param path
+     *            the path of the file to write
+     * @return the created writer, to be closed after use
+     * @throws IOException
+     *             on failure
+     */
+    public static PostWriter open(final Path path) throws IOException {
+        final OutputStream stream = IO.buffer(IO.write(path.toAbsolutePath().toString()));
+        if (BinaryPostCodec.isBinary(path)) {
+            return new BinaryPostWriter(stream);
+        } else {
+            return new JsonPostWriter(IO.utf8Writer(stream));
+        }
+    }
+
+    /**
+     * Checks whether resumable writers can be opened for the file specified, based on its
+     * extension.
+     *
+     * @param path
+     *            the path of the file
+     * @return true, if the file is uncompressed or gzip-compressed
+     */
+    public static boolean isResumable(final Path path) {
+        return path.getFileName().toString().endsWith(".gz")
+                || !BinaryPostCodec.isCompressed(path);
+    }
+
+    /**
+     * Opens a resumable writer for the file specified, keeping its first {@code offset} bytes and
+     * appending posts after them. Offset 0 replaces the file content, as {@link #open(Path)}
+     * does; a non-zero offset should have been returned by {@link #sync()} on a previous writer
+     * for the same file. Only uncompressed and gzip-compressed ({@code .gz}) files are supported.
+     *
+     * @param path
+     *            the path of the file to write
+     * @param offset
+     *            the length of the existing content to keep
+     * @return the created writer, to be closed after use
+     * @throws IOException
+     *             on failure, including the case the file is shorter than the offset
+     */
+    public static PostWriter open(final Path path, final long offset) throws IOException {
+        Preconditions.checkArgument(offset >= 0, "Invalid offset %s", offset);
+        Preconditions.checkArgument(isResumable(path),
+                "Only uncompressed and gzip-compressed files can be resumed: %s", path);
+        final boolean gzip = path.getFileName().toString().endsWith(".gz");
+        final FileChannel channel = FileChannel.open(path.toAbsolutePath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            if (channel.size() < offset) {
+                throw new IOException("Cannot resume writing " + path + " at offset " + offset
+                        + ": file has only " + channel.size() + " bytes");
+            }
+            channel.truncate(offset);
+            channel.position(offset);
+        } catch (final Throwable ex) {
+            channel.close();
+            throw ex;
+        }
+        final SyncStream stream = new SyncStream(channel, gzip);
+        final PostWriter writer = BinaryPostCodec.isBinary(path) ? new BinaryPostWriter(stream)
+                : new JsonPostWriter(IO.utf8Writer(stream));
+        writer.syncStream = stream;
+        return writer;
+    }
+
+    /**
+     * Writes the post specified.
+     *
+     * @param post
+     *            the post to write
+     * @throws IOException
+     *             on failure
+     */
+    public abstract void write(final Post post) throws IOException;
+
+    /**
+     * Writes all the posts specified, in order.
+     *
+     * @param posts
+     *            the posts to write
+     * @throws IOException
+     *             on failure
+     */
+    public void write(final Iterable<Post> posts) throws IOException {
+        for (final Post post : posts) {
+            write(post);
+        }
+    }
+
+    /**
+     * Flushes the posts written so far and forces them to disk, returning the length of the file
+     * at this point, which can be supplied to {@link #open(Path, long)} to later resume writing.
+     * Supported only by writers opened via {@link #open(Path, long)}.
+     *
+     * @return the current file length, in bytes
+     * @throws IOException
+     *             on failure
+     * @throws UnsupportedOperationException
+     *             if the writer is not resumable
+     */
+    public long sync() throws IOException {
+        if (this.syncStream == null) {
+            throw new UnsupportedOperationException("Writer is not resumable");
+        }
+        flush();
+        return this.syncStream.sync();
+    }
+
+    private static final class JsonPostWriter extends PostWriter {
+
+        private final Writer writer;
+
+        private final JsonWriter jsonWriter;
+
+        JsonPostWriter(final Writer writer) {
+            this.writer = writer;
+            this.jsonWriter = new JsonWriter(writer);
+            this.jsonWriter.setLenient(true); // allows writing multiple JSON objects
+            this.jsonWriter.setHtmlSafe(false);
+        }
+
+        @Override
+        public void write(final Post post) throws IOException {
+            post.toJson(this.jsonWriter);
+            this.writer.write("\n");
+        }
+
+        @Override
+        public void flush() throws IOException {
+            this.writer.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.writer.close();
+        }
+
+    }
+
+    private static final class BinaryPostWriter extends PostWriter {
+
+        private final OutputStream stream;
+
+        private final BinaryPostCodec.Encoder encoder;
+
+        BinaryPostWriter(final OutputStream stream) throws IOException {
+            this.stream = stream;
+            this.encoder = new BinaryPostCodec.Encoder(false);
+            writeHeader();
+        }
+
+        @Override
+        public void write(final Post post) throws IOException {
+            if (this.encoder.isDictionaryFull()) {
+                writeHeader(); // start a new segment, bounding the dictionary size
+                this.encoder.reset();
+            }
+            final int length = this.encoder.encode(post);
+            for (int value = length; true; value >>>= 7) {
+                if ((value & ~0x7F) == 0) {
+                    this.stream.write(value);
+                    break;
+                }
+                this.stream.write(value & 0x7F | 0x80);
+            }
+            this.stream.write(this.encoder.getBuffer(), 0, length);
+        }
+
+        private void writeHeader() throws IOException {
+            this.stream.write(0); // zero length marks the segment header
+            this.stream.write(BinaryPostCodec.MAGIC);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            this.stream.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.stream.close();
+        }
+
+    }
+
+    private static final class SyncStream extends OutputStream {
+
+        private final FileChannel channel;
+
+        private final OutputStream stream;
+
+        private final boolean gzip;
+
+        @Nullable
+        private GZIPOutputStream member;
+
+        SyncStream(final FileChannel channel, final boolean gzip) {
+            this.channel = channel;
+            this.stream = IO.buffer(Channels.newOutputStream(channel));
+            this.gzip = gzip;
+            this.member = null;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            target().write(b);
+        }
+
+        @Override
+        public void write(final byte[] buffer, final int offset, final int length)
+                throws IOException {
+            target().write(buffer, offset, length);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            (this.member != null ? this.member : this.stream).flush();
+        }
+
+        long sync() throws IOException {
+            if (this.member != null) {
+                this.member.finish(); // a new gzip member is started on next write
+                this.member = null;
+            }
+            this.stream.flush();
+            this.channel.force(false);
+            return this.channel.position();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (this.member != null) {
+                    this.member.finish();
+                }
+            } finally {
+                this.stream.close();
+            }
+        }
+
+        private OutputStream target() throws IOException {
+            if (!this.gzip) {
+                return this.stream;
+            } else if (this.member == null) {
+                this.member = new GZIPOutputStream(this.stream, 1 << 16);
+            }
+            return this.member;
+        }
+
+    }
+
+}
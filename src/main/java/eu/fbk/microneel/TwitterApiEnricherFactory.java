@@ -0,0 +1,35 @@
+package eu.fbk.microneel;
+
+import java.util.Properties;
+
+import eu.fbk.microneel.util.TwitterBuilder;
+
+/**
+ * The factory of {@code api} enrichers, which gather missing post data via Twitter API lookups.
+ * Properties include the credentials and rate limits understood by {@link TwitterBuilder}, and
+ * the cache, batching and retry settings documented in {@code microneel.properties}.
+ */
+public final class TwitterApiEnricherFactory implements EnricherFactory {
+
+    @Override
+    public String getType() {
+        return "api";
+    }
+
+    @Override
+    public Enricher create(final Properties properties) {
+        return Enricher.createTwitterApiEnricher(
+                new TwitterBuilder().setProperties(properties, null).build(), properties, "");
+    }
+
+    @Override
+    public boolean isConcurrent() {
+        return true; // lookups from concurrent calls are pooled in shared batches
+    }
+
+    @Override
+    public boolean isBatching() {
+        return true;
+    }
+
+}
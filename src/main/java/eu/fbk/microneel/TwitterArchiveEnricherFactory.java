@@ -0,0 +1,35 @@
+package eu.fbk.microneel;
+
+import java.io.IOException;
+import java.util.Properties;
+
+/**
+ * The factory of {@code archive} enrichers, which fill missing post data from local archives of
+ * raw Twitter API JSON, without calling the API. Property {@code files} lists the archive files or
+ * directories (whitespace-separated), containing statuses and users either one per line or in JSON
+ * arrays, possibly compressed. Listing this type before {@code api} makes the latter look up only
+ * the data missing from the archives.
+ */
+public final class TwitterArchiveEnricherFactory implements EnricherFactory {
+
+    @Override
+    public String getType() {
+        return "archive";
+    }
+
+    @Override
+    public Enricher create(final Properties properties) throws IOException {
+        return Enricher.createTwitterArchiveEnricher(properties);
+    }
+
+    @Override
+    public boolean isConcurrent() {
+        return true; // the archive index is read-only after creation
+    }
+
+    @Override
+    public boolean isBatching() {
+        return false; // posts are processed one at a time
+    }
+
+}
@@ -0,0 +1,33 @@
+package eu.fbk.microneel;
+
+import java.util.Properties;
+
+/**
+ * The factory of {@code urls} enrichers, which fill the resolved URL and the page title of URL
+ * annotations by fetching their URLs. Properties control the number of threads and of concurrent
+ * connections per host, redirects, timeouts, the bytes read per page and the resolution cache, as
+ * documented in {@code microneel.properties}.
+ */
+public final class UrlEnricherFactory implements EnricherFactory {
+
+    @Override
+    public String getType() {
+        return "urls";
+    }
+
+    @Override
+    public Enricher create(final Properties properties) {
+        return Enricher.createUrlEnricher(properties);
+    }
+
+    @Override
+    public boolean isConcurrent() {
+        return true; // resolutions from concurrent calls share the same pool and cache
+    }
+
+    @Override
+    public boolean isBatching() {
+        return true;
+    }
+
+}
@@ -0,0 +1,223 @@
+package eu.fbk.microneel.util;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * A micro-batching accumulator, which pools the keys requested by concurrent callers into batch
+ * requests.
+ * <p>
+ * Callers request the value of a key via {@link #get(Object)}, obtaining a
+ * {@code CompletableFuture}. Requested keys are accumulated until either the maximum batch size is
+ * reached or the linger time elapsed since the first key was accumulated, after which the batch
+ * of keys is passed to the batch function on the supplied executor, and the futures of all its
+ * callers are completed with the returned values (null for keys without a value) or with the
+ * exception thrown by the function. Keys already pending are not added twice, the corresponding
+ * future being shared among callers. This allows issuing full batch requests to services where
+ * each request has a cost independent of its size (e.g., rate-limited APIs), also when keys are
+ * supplied by many callers a few at a time. Instances are thread-safe and should be closed after
+ * use, which triggers the processing of pending keys.
+ * </p>
+ *
+ * @param <K>
+ *            the type of key
+ * @param <V>
+ *            the type of value
+ */
+public final class Batcher<K, V> implements Closeable {
+
+    private static final ScheduledExecutorService TIMER = Executors
+            .newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true)
+                    .setNameFormat("microneel-batcher").build());
+
+    private final BatchFunction<K, V> function;
+
+    private final int maxBatchSize;
+
+    private final long lingerTime;
+
+    private final Executor executor;
+
+    private final AtomicLong numBatches;
+
+    private final AtomicLong numKeys;
+
+    private Map<K, CompletableFuture<V>> pending;
+
+    @Nullable
+    private ScheduledFuture<?> timeout;
+
+    private boolean closed;
+
+    /**
+     * Creates a new batcher.
+     *
+     * @param function
+     *            the function computing the values of a batch of keys
+     * @param maxBatchSize
+     *            the maximum number of keys in a batch
+     * @param lingerTime
+     *            the maximum time a key is held waiting for more keys to fill its batch
+     * @param unit
+     *            the time unit of the linger time
+     * @param executor
+     *            the executor where to call the batch function
+     */
+    public Batcher(final BatchFunction<K, V> function, final int maxBatchSize,
+            final long lingerTime, final TimeUnit unit, final Executor executor) {
+        Preconditions.checkArgument(maxBatchSize > 0, "Invalid max batch size %s", maxBatchSize);
+        Preconditions.checkArgument(lingerTime >= 0, "Invalid linger time %s", lingerTime);
+        this.function = Preconditions.checkNotNull(function);
+        this.maxBatchSize = maxBatchSize;
+        this.lingerTime = unit.toNanos(lingerTime);
+        this.executor = Preconditions.checkNotNull(executor);
+        this.numBatches = new AtomicLong(0L);
+        this.numKeys = new AtomicLong(0L);
+        this.pending = new LinkedHashMap<>();
+        this.timeout = null;
+        this.closed = false;
+    }
+
+    /**
+     * Requests the value of the key specified.
+     *
+     * @param key
+     *            the key
+     * @return a future completed with the value of the key, or null if the key has no value
+     */
+    public CompletableFuture<V> get(final K key) {
+        Preconditions.checkNotNull(key);
+        final CompletableFuture<V> future;
+        Map<K, CompletableFuture<V>> batch = null;
+        synchronized (this) {
+            Preconditions.checkState(!this.closed, "Batcher closed");
+            final CompletableFuture<V> pendingFuture = this.pending.get(key);
+            if (pendingFuture != null) {
+                return pendingFuture;
+            }
+            future = new CompletableFuture<>();
+            this.pending.put(key, future);
+            if (this.pending.size() >= this.maxBatchSize || this.lingerTime == 0) {
+                batch = drain();
+            } else if (this.timeout == null) {
+                this.timeout = TIMER.schedule(this::flush, this.lingerTime,
+                        TimeUnit.NANOSECONDS);
+            }
+        }
+        if (batch != null) {
+            process(batch);
+        }
+        return future;
+    }
+
+    /**
+     * Processes the pending keys immediately, without waiting for the linger time to elapse.
+     */
+    public void flush() {
+        final Map<K, CompletableFuture<V>> batch;
+        synchronized (this) {
+            batch = drain();
+        }
+        if (!batch.isEmpty()) {
+            process(batch);
+        }
+    }
+
+    /**
+     * {@inheritDoc} Pending keys are processed, while new keys are rejected.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            this.closed = true;
+        }
+        flush();
+    }
+
+    /**
+     * {@inheritDoc} The returned string reports the number of batches processed and their
+     * average size.
+     */
+    @Override
+    public String toString() {
+        final long numBatches = this.numBatches.get();
+        final long numKeys = this.numKeys.get();
+        return String.format("%s(%d keys in %d batches, %.1f/%d keys per batch)",
+                getClass().getSimpleName(), numKeys, numBatches,
+                numBatches == 0 ? 0.0 : (double) numKeys / numBatches, this.maxBatchSize);
+    }
+
+    private Map<K, CompletableFuture<V>> drain() {
+        final Map<K, CompletableFuture<V>> batch = this.pending;
+        this.pending = new LinkedHashMap<>();
+        if (this.timeout != null) {
+            this.timeout.cancel(false);
+            this.timeout = null;
+        }
+        return batch;
+    }
+
+    private void process(final Map<K, CompletableFuture<V>> batch) {
+        this.numBatches.incrementAndGet();
+        this.numKeys.addAndGet(batch.size());
+        try {
+            this.executor.execute(() -> {
+                try {
+                    final Map<K, V> values = this.function.apply(new ArrayList<>(batch.keySet()));
+                    for (final Map.Entry<K, CompletableFuture<V>> entry : batch.entrySet()) {
+                        entry.getValue().complete(values.get(entry.getKey()));
+                    }
+                } catch (final Throwable ex) {
+                    for (final CompletableFuture<V> future : batch.values()) {
+                        future.completeExceptionally(ex);
+                    }
+                }
+            });
+        } catch (final RejectedExecutionException ex) {
+            for (final CompletableFuture<V> future : batch.values()) {
+                future.completeExceptionally(ex);
+            }
+        }
+    }
+
+    /**
+     * A function computing the values of a batch of keys.
+     *
+     * @param <K>
+     *            the type of key
+     * @param <V>
+     *            the type of value
+     */
+    @FunctionalInterface
+    public interface BatchFunction<K, V> {
+
+        /**
+         * Computes the values of the keys specified.
+         *
+         * @param keys
+         *            the keys, at most as many as the maximum batch size
+         * @return a map with the values of the keys having a value
+         * @throws Exception
+         *             on failure, which is propagated to the futures of all the keys in the batch
+         */
+        Map<K, V> apply(List<K> keys) throws Exception;
+
+    }
+
+}
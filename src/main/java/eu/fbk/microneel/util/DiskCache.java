@@ -0,0 +1,356 @@
+package eu.fbk.microneel.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A persistent, disk-backed cache mapping string keys to byte array values.
+ * <p>
+ * Entries are appended to a single log file, each one consisting of its key, the time it was
+ * written and its value. When the cache is opened, the file is scanned to build an in-memory
+ * index of the live entries (i.e., the last entry written for each key, if not expired), while
+ * values are read from disk only when requested. Entries expire after a configurable time-to-live
+ * and the number of entries is bounded, with the oldest entries being evicted first. Expired,
+ * evicted and overwritten entries occupy space in the file until the file is compacted, which
+ * happens automatically when the cache is opened and obsolete entries take more space than live
+ * ones. A truncated last entry (e.g., after a crash) is discarded. The cache keeps track of hits
+ * and misses, which are reported by {@link #toString()}. Instances are thread-safe and must be
+ * closed after use.
+ * </p>
+ */
+public final class DiskCache implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DiskCache.class);
+
+    private static final byte[] MAGIC = new byte[] { 'M', 'N', 'D', 'C', 1 };
+
+    private static final long MIN_COMPACTION_SIZE = 1L << 20; // 1 MB
+
+    private final Path path;
+
+    private final long ttl;
+
+    private final int maxEntries;
+
+    private final Map<String, Entry> index;
+
+    private FileChannel channel;
+
+    private long fileSize;
+
+    private long liveBytes;
+
+    private long hits;
+
+    private long misses;
+
+    private DiskCache(final Path path, final long ttl, final int maxEntries) {
+        this.path = path;
+        this.ttl = ttl;
+        this.maxEntries = maxEntries;
+        this.index = new LinkedHashMap<>();
+        this.channel = null;
+        this.fileSize = 0L;
+        this.liveBytes = 0L;
+        this.hits = 0L;
+        this.misses = 0L;
+    }
+
+    /**
+     * Opens the cache stored in the file specified, creating it if it does not exist.
+     *
+     * @param path
+     *            the cache file
+     * @param ttl
+     *            the time-to-live of cache entries
+     * @param unit
+     *            the time unit of the time-to-live
+     * @param maxEntries
+     *            the maximum number of entries in the cache
+     * @return the opened cache, to be closed after use
+     * @throws IOException
+     *             on failure
+     */
+    public static DiskCache open(final Path path, final long ttl, final TimeUnit unit,
+            final int maxEntries) throws IOException {
+        Preconditions.checkArgument(ttl > 0, "Invalid time-to-live %s", ttl);
+        Preconditions.checkArgument(maxEntries > 0, "Invalid max entries %s", maxEntries);
+        final DiskCache cache = new DiskCache(path.toAbsolutePath(), unit.toMillis(ttl),
+                maxEntries);
+        cache.load();
+        if (cache.fileSize > MIN_COMPACTION_SIZE && cache.liveBytes < cache.fileSize / 2) {
+            cache.compact();
+        }
+        return cache;
+    }
+
+    /**
+     * Returns the number of live entries in the cache.
+     *
+     * @return the number of entries
+     */
+    public synchronized int size() {
+        return this.index.size();
+    }
+
+    /**
+     * Checks whether a value is cached for the key specified, without reading it and without
+     * affecting hit / miss statistics.
+     *
+     * @param key
+     *            the key
+     * @return true, if a value is cached for the key and not expired
+     */
+    public synchronized boolean contains(final String key) {
+        final Entry entry = this.index.get(key);
+        return entry != null && entry.timestamp + this.ttl >= System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the value cached for the key specified, if any and not expired. Only the index
+     * lookup is done under the cache lock, whereas the value is read via a positional read that
+     * does not block concurrent callers (the file is append-only while open, so the value stays
+     * valid even if its entry is concurrently evicted or replaced).
+     *
+     * @param key
+     *            the key
+     * @return the cached value, or null if not cached
+     * @throws IOException
+     *             on failure
+     */
+    @Nullable
+    public byte[] get(final String key) throws IOException {
+        final Entry entry;
+        final FileChannel channel;
+        synchronized (this) {
+            entry = this.index.get(key);
+            channel = this.channel;
+            if (entry != null && entry.timestamp + this.ttl < System.currentTimeMillis()) {
+                this.index.remove(key);
+                this.liveBytes -= entry.length;
+                ++this.misses;
+                return null;
+            } else if (entry == null) {
+                ++this.misses;
+                return null;
+            }
+            ++this.hits;
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(entry.valueLength);
+        while (buffer.hasRemaining()) {
+            final long position = entry.valueOffset + buffer.position();
+            if (channel.read(buffer, position) < 0) {
+                throw new EOFException("Truncated cache file " + this.path);
+            }
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Stores the value specified for the key specified, replacing any previous value.
+     *
+     * @param key
+     *            the key
+     * @param value
+     *            the value, possibly empty
+     * @throws IOException
+     *             on failure
+     */
+    public synchronized void put(final String key, final byte[] value) throws IOException {
+        final byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        final long timestamp = System.currentTimeMillis();
+        final ByteBuffer buffer = ByteBuffer.allocate(16 + keyBytes.length + value.length);
+        buffer.putInt(keyBytes.length).put(keyBytes).putLong(timestamp).putInt(value.length)
+                .put(value).flip();
+        final long offset = this.fileSize;
+        while (buffer.hasRemaining()) {
+            this.channel.write(buffer, offset + buffer.position());
+        }
+        this.fileSize += buffer.limit();
+        index(key, new Entry(offset, buffer.limit(), timestamp, value.length));
+    }
+
+    /**
+     * {@inheritDoc} Pending writes are forced to disk.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (this.channel.isOpen()) {
+            this.channel.force(false);
+            this.channel.close();
+        }
+    }
+
+    /**
+     * {@inheritDoc} The returned string reports the number of entries and the hits and misses
+     * since the cache was opened.
+     */
+    @Override
+    public synchronized String toString() {
+        final long lookups = this.hits + this.misses;
+        return String.format("%s(%s, %d entries, %d hits, %d misses, %.1f%% hit ratio)",
+                getClass().getSimpleName(), this.path, this.index.size(), this.hits,
+                this.misses, lookups == 0 ? 0.0 : 100.0 * this.hits / lookups);
+    }
+
+    private void index(final String key, final Entry entry) {
+        final Entry oldEntry = this.index.remove(key); // so to move the key at the end
+        if (oldEntry != null) {
+            this.liveBytes -= oldEntry.length;
+        }
+        this.index.put(key, entry);
+        this.liveBytes += entry.length;
+        if (this.index.size() > this.maxEntries) {
+            final Iterator<Entry> i = this.index.values().iterator();
+            this.liveBytes -= i.next().length; // evict the oldest entry
+            i.remove();
+        }
+    }
+
+    private void load() throws IOException {
+
+        // Open the file, writing the header if empty
+        this.channel = FileChannel.open(this.path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        final long size = this.channel.size();
+        if (size == 0) {
+            this.channel.write(ByteBuffer.wrap(MAGIC), 0);
+            this.fileSize = MAGIC.length;
+            return;
+        }
+
+        // Scan the entries in the file, indexing the ones not expired
+        final long now = System.currentTimeMillis();
+        long offset = 0;
+        int numExpired = 0;
+        this.channel.position(0);
+        final DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Channels.newInputStream(this.channel), 1 << 16));
+        try {
+            final byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Invalid or unsupported cache file: " + this.path);
+            }
+            offset = MAGIC.length;
+            while (offset < size) {
+                final int keyLength = in.readInt();
+                if (keyLength < 0 || offset + 16 + keyLength > size) {
+                    throw new EOFException(); // check before allocating a bogus key length
+                }
+                final byte[] key = new byte[keyLength];
+                in.readFully(key);
+                final long timestamp = in.readLong();
+                final int valueLength = in.readInt();
+                final long valueOffset = offset + 16 + key.length;
+                final int length = 16 + key.length + valueLength;
+                if (valueLength < 0 || valueOffset + valueLength > size) {
+                    throw new EOFException();
+                }
+                in.skipBytes(valueLength);
+                if (timestamp + this.ttl >= now) {
+                    index(new String(key, StandardCharsets.UTF_8),
+                            new Entry(offset, length, timestamp, valueLength));
+                } else {
+                    ++numExpired;
+                }
+                offset += length;
+            }
+        } catch (final EOFException ex) {
+            LOGGER.warn("Discarding truncated entry at offset {} of cache file {}", offset,
+                    this.path);
+            this.channel.truncate(offset);
+            if (offset < MAGIC.length) {
+                this.channel.write(ByteBuffer.wrap(MAGIC), 0); // truncated header
+                offset = MAGIC.length;
+            }
+        }
+        this.fileSize = offset;
+        LOGGER.info("Loaded {} entries from cache file {} ({} expired)", this.index.size(),
+                this.path, numExpired);
+    }
+
+    private void compact() throws IOException {
+
+        // Copy live entries to a temporary file, adjusting their offsets
+        final Path tmpPath = this.path.resolveSibling(this.path.getFileName() + ".tmp");
+        final long oldFileSize = this.fileSize;
+        long offset = MAGIC.length;
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(tmpPath), 1 << 16))) {
+            out.write(MAGIC);
+            for (final Map.Entry<String, Entry> e : this.index.entrySet()) {
+                final Entry entry = e.getValue();
+                final ByteBuffer buffer = ByteBuffer.allocate(entry.length);
+                while (buffer.hasRemaining()) {
+                    if (this.channel.read(buffer, entry.offset + buffer.position()) < 0) {
+                        throw new EOFException("Truncated cache file " + this.path);
+                    }
+                }
+                out.write(buffer.array());
+                e.setValue(new Entry(offset, entry.length, entry.timestamp, entry.valueLength));
+                offset += entry.length;
+            }
+        }
+
+        // Replace the cache file with the compacted one
+        this.channel.close();
+        Files.move(tmpPath, this.path, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        this.channel = FileChannel.open(this.path, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        this.fileSize = offset;
+        this.liveBytes = offset - MAGIC.length;
+        LOGGER.info("Compacted cache file {} from {} to {} bytes", this.path, oldFileSize,
+                offset);
+    }
+
+    private static final class Entry {
+
+        final long offset;
+
+        final int length;
+
+        final long timestamp;
+
+        final int valueLength;
+
+        final long valueOffset;
+
+        Entry(final long offset, final int length, final long timestamp,
+                final int valueLength) {
+            this.offset = offset;
+            this.length = length;
+            this.timestamp = timestamp;
+            this.valueLength = valueLength;
+            this.valueOffset = offset + length - valueLength;
+        }
+
+    }
+
+}
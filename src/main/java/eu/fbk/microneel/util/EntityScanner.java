@@ -0,0 +1,315 @@
+package eu.fbk.microneel.util;
+
+/**
+ * A single-pass scanner locating mentions, hashtags and URLs in tweet texts.
+ * <p>
+ * The scanner follows the extraction rules of the twitter-text library used by Twitter to build
+ * the entities returned by its API: a mention is {@code @} followed by 1-20 ASCII letters, digits
+ * or underscores, not preceded by a word character or an e-mail like prefix and not denoting a
+ * list (e.g., {@code @user/list}); a hashtag is {@code #} followed by a sequence of Unicode
+ * letters, marks, digits and underscores containing at least a letter, not preceded by a word
+ * character or {@code &}; a URL starts with {@code http://} or {@code https://} followed by a
+ * domain, an optional port and an optional path / query, with unbalanced closing parentheses and
+ * trailing punctuation excluded. Entities are reported left to right and never overlap, as the
+ * text inside a URL (e.g., a fragment {@code #x}) is not scanned for mentions and hashtags.
+ * Unlike twitter-text, URLs without protocol (e.g., {@code example.com}) are not recognized, as
+ * this would require a list of top-level domains; texts returned by the Twitter API contain only
+ * {@code https://t.co/...} URLs anyway. No object is allocated while scanning.
+ * </p>
+ */
+public final class EntityScanner {
+
+    private static final int MAX_USERNAME_LENGTH = 20;
+
+    private static final String LATIN_ACCENTS = "\u0253\u0254\u0256\u0257\u0259\u025B\u0263\u0268"
+            + "\u026F\u0272\u0289\u028B\u02BB"; // besides ranges checked in isLatinAccent()
+
+    private EntityScanner() {
+    }
+
+    /**
+     * Scans the text specified, notifying the handler of each entity found.
+     *
+     * @param text
+     *            the text to scan
+     * @param handler
+     *            the handler to notify
+     */
+    public static void scan(final String text, final Handler handler) {
+        final int length = text.length();
+        int index = 0;
+        while (index < length) {
+            final char c = text.charAt(index);
+            int end = -1;
+            if (c == 'h' || c == 'H') {
+                end = scanUrl(text, index);
+                if (end > 0) {
+                    handler.onEntity(Type.URL, index, end);
+                }
+            } else if (c == '@' || c == '\uFF20') {
+                end = scanMention(text, index);
+                if (end > 0) {
+                    handler.onEntity(Type.MENTION, index, end);
+                }
+            } else if (c == '#' || c == '\uFF03') {
+                end = scanHashtag(text, index);
+                if (end > 0) {
+                    handler.onEntity(Type.HASHTAG, index, end);
+                }
+            }
+            index = end > 0 ? end : index + 1;
+        }
+    }
+
+    private static int scanMention(final String text, final int begin) {
+
+        // Check the preceding char: accept start of text, non-word chars and 'RT' prefixes
+        if (begin > 0) {
+            final char c = text.charAt(begin - 1);
+            if (isAsciiAlphanumeric(c) || "_!#$%&*@\uFF20".indexOf(c) >= 0) {
+                final boolean retweet = (c == 't' || c == 'T') && begin >= 2
+                        && (text.charAt(begin - 2) == 'r' || text.charAt(begin - 2) == 'R')
+                        && (begin == 2 || !isAsciiAlphanumeric(text.charAt(begin - 3))
+                                && "_+~.-".indexOf(text.charAt(begin - 3)) < 0);
+                if (!retweet) {
+                    return -1;
+                }
+            }
+        }
+
+        // Match the username, up to its maximum length
+        final int length = text.length();
+        final int max = Math.min(length, begin + 1 + MAX_USERNAME_LENGTH);
+        int end = begin + 1;
+        while (end < max && isUsernameChar(text.charAt(end))) {
+            ++end;
+        }
+        if (end == begin + 1) {
+            return -1;
+        }
+
+        // Reject list references
+        if (end + 1 < length && text.charAt(end) == '/' && isAsciiLetter(text.charAt(end + 1))) {
+            return -1;
+        }
+
+        // Check the following chars
+        if (end < length) {
+            final char c = text.charAt(end);
+            if (c == '@' || c == '\uFF20' || isLatinAccent(c) || text.startsWith("://", end)) {
+                return -1;
+            }
+        }
+        return end;
+    }
+
+    private static int scanHashtag(final String text, final int begin) {
+
+        // Check the preceding char, which cannot be part of a hashtag or '&' (HTML entities)
+        if (begin > 0) {
+            final int cp = text.codePointBefore(begin);
+            if (cp == '&' || isHashtagAlphanumeric(cp)) {
+                return -1;
+            }
+        }
+
+        // Match the hashtag, which cannot start with an emoji keycap modifier and must contain
+        // at least a letter
+        final int length = text.length();
+        int end = begin + 1;
+        if (end < length && (text.charAt(end) == '\uFE0F' || text.charAt(end) == '\u20E3')) {
+            return -1;
+        }
+        boolean alpha = false;
+        while (end < length) {
+            final int cp = text.codePointAt(end);
+            if (!isHashtagAlphanumeric(cp)) {
+                break;
+            }
+            alpha |= isHashtagAlpha(cp);
+            end += Character.charCount(cp);
+        }
+        if (!alpha) {
+            return -1;
+        }
+
+        // Check the following chars
+        if (end < length) {
+            final char c = text.charAt(end);
+            if (c == '#' || c == '\uFF03' || text.startsWith("://", end)) {
+                return -1;
+            }
+        }
+        return end;
+    }
+
+    private static int scanUrl(final String text, final int begin) {
+
+        // Check the preceding char
+        if (begin > 0) {
+            final char c = text.charAt(begin - 1);
+            if (isAsciiAlphanumeric(c) || "@\uFF20$#\uFF03".indexOf(c) >= 0
+                    || c >= '\u202A' && c <= '\u202E') {
+                return -1;
+            }
+        }
+
+        // Match the protocol
+        int end;
+        if (text.regionMatches(true, begin, "http://", 0, 7)) {
+            end = begin + 7;
+        } else if (text.regionMatches(true, begin, "https://", 0, 8)) {
+            end = begin + 8;
+        } else {
+            return -1;
+        }
+
+        // Match the domain, which must contain a dot, excluding trailing dots
+        final int length = text.length();
+        final int domainBegin = end;
+        while (end < length) {
+            final int cp = text.codePointAt(end);
+            if (cp == '.') {
+                if (end == domainBegin || text.charAt(end - 1) == '.') {
+                    break;
+                }
+            } else if (!Character.isLetterOrDigit(cp) && cp != '-' && cp != '_') {
+                break;
+            }
+            end += Character.charCount(cp);
+        }
+        while (end > domainBegin && text.charAt(end - 1) == '.') {
+            --end;
+        }
+        final int dot = text.lastIndexOf('.', end - 1);
+        if (dot <= domainBegin || text.charAt(domainBegin) == '-') {
+            return -1;
+        }
+
+        // Match the optional port
+        if (end + 1 < length && text.charAt(end) == ':' && isAsciiDigit(text.charAt(end + 1))) {
+            end += 2;
+            while (end < length && isAsciiDigit(text.charAt(end))) {
+                ++end;
+            }
+        }
+
+        // Match the optional path and query, stopping at unbalanced closing parentheses and
+        // excluding trailing chars that cannot end a URL (e.g., punctuation)
+        if (end < length && (text.charAt(end) == '/' || text.charAt(end) == '?')) {
+            final int pathBegin = end;
+            boolean query = false;
+            int depth = 0;
+            while (end < length) {
+                final int cp = text.codePointAt(end);
+                if (cp == '(') {
+                    ++depth;
+                } else if (cp == ')') {
+                    if (depth == 0) {
+                        break;
+                    }
+                    --depth;
+                } else if (cp == '?') {
+                    query = true;
+                } else if (query ? !isQueryChar(cp) : !isPathChar(cp)) {
+                    break;
+                }
+                end += Character.charCount(cp);
+            }
+            while (end > pathBegin) {
+                final int cp = text.codePointBefore(end);
+                if (Character.isLetterOrDigit(cp) || "=_#/-+&|@)".indexOf(cp) >= 0) {
+                    break;
+                }
+                end -= Character.charCount(cp);
+            }
+        }
+        return end;
+    }
+
+    private static boolean isPathChar(final int cp) {
+        return Character.isLetterOrDigit(cp) || "!*';:=+,.$/%#[]-_~&|@\u2013".indexOf(cp) >= 0;
+    }
+
+    private static boolean isQueryChar(final int cp) {
+        return cp < 128 && (isAsciiAlphanumeric((char) cp)
+                || "!?*';:&=+$/%#[]-_.,~|@".indexOf(cp) >= 0);
+    }
+
+    private static boolean isHashtagAlpha(final int cp) {
+        if (Character.isLetter(cp)) {
+            return true;
+        }
+        final int type = Character.getType(cp);
+        return type == Character.NON_SPACING_MARK || type == Character.ENCLOSING_MARK
+                || type == Character.COMBINING_SPACING_MARK;
+    }
+
+    private static boolean isHashtagAlphanumeric(final int cp) {
+        return isHashtagAlpha(cp) || Character.getType(cp) == Character.DECIMAL_DIGIT_NUMBER
+                || cp == '_' || cp == 0x200C || cp == 0x200D || cp == 0xA67E || cp == 0x05BE
+                || cp == 0x05F3 || cp == 0x05F4 || cp == 0xFF5E || cp == 0x301C || cp == 0x309B
+                || cp == 0x309C || cp == 0x30A0 || cp == 0x30FB || cp == 0x3003 || cp == 0x0F0B
+                || cp == 0x0F0C || cp == 0x00B7;
+    }
+
+    private static boolean isLatinAccent(final char c) {
+        return c >= '\u00C0' && c <= '\u024F' && c != '\u00D7' && c != '\u00F7'
+                || c >= '\u0300' && c <= '\u036F' || c >= '\u1E00' && c <= '\u1EFF'
+                || LATIN_ACCENTS.indexOf(c) >= 0;
+    }
+
+    private static boolean isUsernameChar(final char c) {
+        return isAsciiAlphanumeric(c) || c == '_';
+    }
+
+    private static boolean isAsciiAlphanumeric(final char c) {
+        return isAsciiLetter(c) || isAsciiDigit(c);
+    }
+
+    private static boolean isAsciiLetter(final char c) {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z';
+    }
+
+    private static boolean isAsciiDigit(final char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    /**
+     * The type of entity found by the scanner.
+     */
+    public enum Type {
+
+        /** A user mention, e.g., {@code @user}. */
+        MENTION,
+
+        /** A hashtag, e.g., {@code #tag}. */
+        HASHTAG,
+
+        /** A URL, e.g., {@code https://t.co/abc}. */
+        URL
+
+    }
+
+    /**
+     * A callback notified of the entities found by the scanner.
+     */
+    @FunctionalInterface
+    public interface Handler {
+
+        /**
+         * Called for each entity found, in text order.
+         *
+         * @param type
+         *            the entity type
+         * @param beginIndex
+         *            the begin index of the entity in the text, inclusive, including the initial
+         *            {@code @} or {@code #} for mentions and hashtags
+         * @param endIndex
+         *            the end index of the entity in the text, exclusive
+         */
+        void onEntity(Type type, int beginIndex, int endIndex);
+
+    }
+
+}
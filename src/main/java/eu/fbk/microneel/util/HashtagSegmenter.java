@@ -0,0 +1,329 @@
+package eu.fbk.microneel.util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+
+import eu.fbk.utils.core.IO;
+
+/**
+ * A segmenter splitting hashtags into words, based on a word frequency dictionary.
+ * <p>
+ * A hashtag is first split at case changes (e.g., {@code JuventusInter}), at letter / digit
+ * boundaries (e.g., {@code xfactor2016}) and at other chars (e.g., {@code _}). If the hashtag is
+ * in camel case, its letter chunks are taken as words, as delimited by the author. Otherwise, each
+ * letter chunk is segmented via dynamic programming (Viterbi), choosing the sequence of words with
+ * maximum probability according to a unigram model estimated from the dictionary. Chars not
+ * covered by dictionary words are grouped in unknown words, each unknown char costing more than
+ * any known word. The returned segmentation preserves the case of the hashtag, e.g.,
+ * {@code juventusinter} is segmented as {@code juventus inter}.
+ * </p>
+ * <p>
+ * The dictionary is a UTF-8 text file, possibly compressed, with a word per line optionally
+ * followed by a tab and its frequency (1 if omitted). Words are lowercased and stored in a trie
+ * laid out in a few primitive arrays, with the children of each node stored contiguously in
+ * breadth-first order and sorted by label. Segmenters are immutable and thread-safe, and
+ * {@link #forDictionary(Path)} loads each dictionary once per JVM.
+ * </p>
+ */
+public final class HashtagSegmenter {
+
+    private static final Map<Path, HashtagSegmenter> SEGMENTERS = new ConcurrentHashMap<>();
+
+    private static final int LETTER = 1;
+
+    private static final int UPPERCASE = 2;
+
+    private static final int DIGIT = 4;
+
+    private final char[] labels; // the char of the edge to each node
+
+    private final int[] children; // children of node i are children[i] ... children[i + 1] - 1
+
+    private final float[] costs; // -log(probability) of the word of each node, NaN if none
+
+    private final float unknownCost;
+
+    private final int numWords;
+
+    private HashtagSegmenter(final String[] words, final long[] frequencies) {
+
+        // Compute word costs
+        long total = 0;
+        for (final long frequency : frequencies) {
+            total += frequency;
+        }
+        final double logTotal = Math.log(Math.max(1, total));
+        this.unknownCost = (float) (logTotal + Math.log(10));
+        this.numWords = words.length;
+
+        // Build the trie in breadth-first order, each node being a range of sorted words sharing
+        // the prefix of length 'depth'
+        final int maxNodes = 1 + Arrays.stream(words).mapToInt(String::length).sum();
+        final char[] labels = new char[maxNodes];
+        final int[] children = new int[maxNodes + 1];
+        final float[] costs = new float[maxNodes];
+        final int[] los = new int[maxNodes];
+        final int[] his = new int[maxNodes];
+        final int[] depths = new int[maxNodes];
+        his[0] = words.length;
+        int numNodes = 1;
+        for (int node = 0; node < numNodes; ++node) {
+            final int depth = depths[node];
+            int lo = los[node];
+            final int hi = his[node];
+            costs[node] = Float.NaN;
+            if (lo < hi && words[lo].length() == depth) {
+                costs[node] = (float) (logTotal - Math.log(frequencies[lo]));
+                ++lo; // sorted words: a word precedes the words it is a prefix of
+            }
+            children[node] = numNodes;
+            while (lo < hi) {
+                final char c = words[lo].charAt(depth);
+                int end = lo + 1;
+                while (end < hi && words[end].charAt(depth) == c) {
+                    ++end;
+                }
+                labels[numNodes] = c;
+                los[numNodes] = lo;
+                his[numNodes] = end;
+                depths[numNodes] = depth + 1;
+                ++numNodes;
+                lo = end;
+            }
+        }
+        children[numNodes] = numNodes;
+        this.labels = Arrays.copyOf(labels, numNodes);
+        this.children = Arrays.copyOf(children, numNodes + 1);
+        this.costs = Arrays.copyOf(costs, numNodes);
+    }
+
+    /**
+     * Returns the segmenter for the dictionary file specified, loading it if not already loaded
+     * by this JVM.
+     *
+     * @param path
+     *            the dictionary file
+     * @return the segmenter
+     * @throws IOException
+     *             on failure
+     */
+    public static HashtagSegmenter forDictionary(final Path path) throws IOException {
+        try {
+            return SEGMENTERS.computeIfAbsent(path.toAbsolutePath().normalize(), p -> {
+                try {
+                    return load(p);
+                } catch (final IOException ex) {
+                    throw Throwables.propagate(ex);
+                }
+            });
+        } catch (final RuntimeException ex) {
+            Throwables.propagateIfPossible(ex.getCause(), IOException.class);
+            throw ex;
+        }
+    }
+
+    /**
+     * Loads a new segmenter from the dictionary file specified.
+     *
+     * @param path
+     *            the dictionary file
+     * @return the loaded segmenter
+     * @throws IOException
+     *             on failure, including the case the dictionary is invalid
+     */
+    public static HashtagSegmenter load(final Path path) throws IOException {
+        final Map<String, Long> map = new HashMap<>();
+        try (BufferedReader reader = new BufferedReader(
+                IO.utf8Reader(IO.buffer(IO.read(path.toString()))))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final int index = line.indexOf('\t');
+                final String word = lowercase(
+                        (index < 0 ? line : line.substring(0, index)).trim());
+                if (!word.isEmpty()) {
+                    try {
+                        final long frequency = index < 0 ? 1L
+                                : Long.parseLong(line.substring(index + 1).trim());
+                        Preconditions.checkArgument(frequency > 0);
+                        map.merge(word, frequency, Long::sum);
+                    } catch (final IllegalArgumentException ex) {
+                        throw new IOException("Invalid dictionary line in " + path + ": " + line);
+                    }
+                }
+            }
+        }
+        final String[] words = map.keySet().toArray(new String[map.size()]);
+        Arrays.sort(words);
+        final long[] frequencies = new long[words.length];
+        for (int i = 0; i < words.length; ++i) {
+            frequencies[i] = map.get(words[i]);
+        }
+        return new HashtagSegmenter(words, frequencies);
+    }
+
+    /**
+     * Segments the hashtag specified.
+     *
+     * @param hashtag
+     *            the hashtag, without the initial {@code #}
+     * @return the words of the hashtag, separated by single spaces
+     */
+    public String segment(final String hashtag) {
+        // Detect camel case, i.e., lowercase letters and an uppercase letter after the first one
+        final int length = hashtag.length();
+        boolean lowercase = false;
+        boolean uppercase = false;
+        for (int i = 0; i < length; ++i) {
+            final int type = type(hashtag.charAt(i));
+            lowercase |= type == LETTER;
+            uppercase |= type == (LETTER | UPPERCASE) && i > 0;
+        }
+        final boolean camelCase = lowercase && uppercase;
+
+        final StringBuilder builder = new StringBuilder(length + 8);
+        int begin = 0;
+        while (begin < length) {
+
+            // Find the next chunk: a digit sequence, an uppercase letter sequence, a letter
+            // sequence with only the first letter possibly uppercase (camel case), or a single
+            // other char, which is skipped
+            final int type = type(hashtag.charAt(begin));
+            int end = begin + 1;
+            if (type == DIGIT) {
+                while (end < length && type(hashtag.charAt(end)) == DIGIT) {
+                    ++end;
+                }
+            } else if (type == (LETTER | UPPERCASE) && end < length
+                    && type(hashtag.charAt(end)) == (LETTER | UPPERCASE)) {
+                while (end < length && type(hashtag.charAt(end)) == (LETTER | UPPERCASE)) {
+                    ++end;
+                }
+                if (end < length && type(hashtag.charAt(end)) == LETTER) {
+                    --end; // 'XFactor': 'F' starts the next chunk
+                }
+            } else if (type != 0) {
+                while (end < length && type(hashtag.charAt(end)) == LETTER) {
+                    ++end;
+                }
+            } else {
+                begin = end;
+                continue;
+            }
+
+            // Emit the chunk, segmenting letter sequences unless delimited via camel case
+            if ((type & LETTER) != 0 && !camelCase) {
+                segment(hashtag, begin, end, builder);
+            } else {
+                if (builder.length() > 0) {
+                    builder.append(' ');
+                }
+                builder.append(hashtag, begin, end);
+            }
+            begin = end;
+        }
+        return builder.toString();
+    }
+
+    private void segment(final String string, final int begin, final int end,
+            final StringBuilder builder) {
+
+        // Compute the best segmentation ending at each position: best[i] is the cost of the best
+        // segmentation of the first i chars, whose last word starts at starts[i]
+        final int length = end - begin;
+        final float[] best = new float[length + 1];
+        final int[] starts = new int[length + 1];
+        Arrays.fill(best, Float.POSITIVE_INFINITY);
+        best[0] = 0;
+        for (int i = 0; i < length; ++i) {
+            final float base = best[i];
+
+            // Unknown single char, merged later with adjacent unknown chars
+            if (base + this.unknownCost < best[i + 1]) {
+                best[i + 1] = base + this.unknownCost;
+                starts[i + 1] = ~i; // negative: unknown
+            }
+
+            // Dictionary words starting at i
+            int node = 0;
+            for (int j = i; j < length; ++j) {
+                node = child(node, Character.toLowerCase(string.charAt(begin + j)));
+                if (node < 0) {
+                    break;
+                }
+                final float cost = this.costs[node];
+                if (cost == cost && base + cost < best[j + 1]) { // cost == cost: not NaN
+                    best[j + 1] = base + cost;
+                    starts[j + 1] = i;
+                }
+            }
+        }
+
+        // Backtrack, marking word starts (adjacent unknown chars form a single word), then emit
+        // the words
+        final boolean[] boundaries = new boolean[length];
+        for (int i = length; i > 0;) {
+            final boolean unknown = starts[i] < 0;
+            final int start = unknown ? ~starts[i] : starts[i];
+            boundaries[start] = !unknown || start == 0 || starts[start] >= 0;
+            i = start;
+        }
+        for (int i = 0; i < length; ++i) {
+            if (boundaries[i] && (i > 0 || builder.length() > 0)) {
+                builder.append(' ');
+            }
+            builder.append(string.charAt(begin + i));
+        }
+    }
+
+    private int child(final int node, final char c) {
+        int lo = this.children[node];
+        int hi = this.children[node + 1] - 1;
+        while (lo <= hi) {
+            final int mid = lo + hi >>> 1;
+            final char label = this.labels[mid];
+            if (label < c) {
+                lo = mid + 1;
+            } else if (label > c) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private static String lowercase(final String string) {
+        final char[] chars = string.toCharArray(); // per char, consistently with segment()
+        for (int i = 0; i < chars.length; ++i) {
+            chars[i] = Character.toLowerCase(chars[i]);
+        }
+        return new String(chars);
+    }
+
+    private static int type(final char c) {
+        if (Character.isDigit(c)) {
+            return DIGIT;
+        } else if (Character.isLetter(c)) {
+            return Character.isUpperCase(c) ? LETTER | UPPERCASE : LETTER;
+        } else {
+            final int type = Character.getType(c);
+            return type == Character.NON_SPACING_MARK || type == Character.COMBINING_SPACING_MARK
+                    ? LETTER : 0;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "(" + this.numWords + " words, " + this.labels.length
+                + " trie nodes)";
+    }
+
+}
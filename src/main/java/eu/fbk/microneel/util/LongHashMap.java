@@ -0,0 +1,183 @@
+package eu.fbk.microneel.util;
+
+import java.util.Arrays;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A map from primitive {@code long} keys to object values, based on an open-addressing hash
+ * table.
+ * <p>
+ * Keys and values are stored in two parallel arrays using linear probing, so that no boxed key
+ * nor map entry object is allocated for each mapping, differently from a {@code HashMap<Long, V>}.
+ * Null values are not supported, and removal is not supported, as not needed for the intended
+ * usage of indexing lookup results by ID. The map is not thread safe.
+ * </p>
+ *
+ * @param <V>
+ *            the type of value
+ */
+public final class LongHashMap<V> {
+
+    private static final long EMPTY = 0L; // the value of the zero key is stored separately
+
+    private long[] keys;
+
+    private Object[] values;
+
+    private int size;
+
+    @Nullable
+    private V zeroValue;
+
+    /**
+     * Creates a new empty map.
+     */
+    public LongHashMap() {
+        this(16);
+    }
+
+    /**
+     * Creates a new empty map, sized for the number of mappings specified.
+     *
+     * @param expectedSize
+     *            the expected number of mappings
+     */
+    public LongHashMap(final int expectedSize) {
+        Preconditions.checkArgument(expectedSize >= 0, "Invalid expected size %s", expectedSize);
+        final int capacity = LongHashing.capacityFor(expectedSize);
+        this.keys = new long[capacity];
+        this.values = new Object[capacity];
+        this.size = 0;
+        this.zeroValue = null;
+    }
+
+    /**
+     * Returns the number of mappings in the map.
+     *
+     * @return the map size
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Returns true if the map is empty.
+     *
+     * @return true if the map is empty
+     */
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    /**
+     * Returns the value associated to the key specified.
+     *
+     * @param key
+     *            the key
+     * @return the associated value, or null if the key is not in the map
+     */
+    @SuppressWarnings("unchecked")
+    @Nullable
+    public V get(final long key) {
+        if (key == EMPTY) {
+            return this.zeroValue;
+        }
+        final int mask = this.keys.length - 1;
+        for (int i = LongHashing.hash(key) & mask;; i = i + 1 & mask) {
+            final long k = this.keys[i];
+            if (k == key) {
+                return (V) this.values[i];
+            } else if (k == EMPTY) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Checks whether the key specified is in the map.
+     *
+     * @param key
+     *            the key
+     * @return true if the key is in the map
+     */
+    public boolean containsKey(final long key) {
+        return get(key) != null;
+    }
+
+    /**
+     * Associates the value specified to the key specified, replacing any previous value.
+     *
+     * @param key
+     *            the key
+     * @param value
+     *            the value, not null
+     * @return the previous value associated to the key, or null if none
+     */
+    @SuppressWarnings("unchecked")
+    @Nullable
+    public V put(final long key, final V value) {
+        Preconditions.checkNotNull(value);
+        if (key == EMPTY) {
+            final V oldValue = this.zeroValue;
+            this.zeroValue = value;
+            if (oldValue == null) {
+                ++this.size;
+            }
+            return oldValue;
+        }
+        final int mask = this.keys.length - 1;
+        for (int i = LongHashing.hash(key) & mask;; i = i + 1 & mask) {
+            final long k = this.keys[i];
+            if (k == key) {
+                final V oldValue = (V) this.values[i];
+                this.values[i] = value;
+                return oldValue;
+            } else if (k == EMPTY) {
+                this.keys[i] = key;
+                this.values[i] = value;
+                if (++this.size > LongHashing.maxSizeFor(this.keys.length)) {
+                    rehash(this.keys.length * 2);
+                }
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Removes all the mappings in the map.
+     */
+    public void clear() {
+        Arrays.fill(this.keys, EMPTY);
+        Arrays.fill(this.values, null);
+        this.size = 0;
+        this.zeroValue = null;
+    }
+
+    private void rehash(final int capacity) {
+        final long[] oldKeys = this.keys;
+        final Object[] oldValues = this.values;
+        this.keys = new long[capacity];
+        this.values = new Object[capacity];
+        final int mask = capacity - 1;
+        for (int j = 0; j < oldKeys.length; ++j) {
+            final long key = oldKeys[j];
+            if (key != EMPTY) {
+                int i = LongHashing.hash(key) & mask;
+                while (this.keys[i] != EMPTY) {
+                    i = i + 1 & mask;
+                }
+                this.keys[i] = key;
+                this.values[i] = oldValues[j];
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "(" + this.size + " mappings)";
+    }
+
+}
@@ -0,0 +1,183 @@
+package eu.fbk.microneel.util;
+
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A set of primitive {@code long} values, based on an open-addressing hash table.
+ * <p>
+ * Values are stored unboxed in a single {@code long[]} array using linear probing, so that each
+ * value takes 8 to 16 bytes instead of the ~50 bytes of a {@code HashSet<Long>} entry. Removal is
+ * not supported, as not needed for the intended usage of collecting IDs to look up. The set is not
+ * thread safe.
+ * </p>
+ */
+public final class LongHashSet {
+
+    private static final long EMPTY = 0L; // the zero value is tracked separately
+
+    private long[] table;
+
+    private int size;
+
+    private boolean hasZero;
+
+    /**
+     * Creates a new empty set.
+     */
+    public LongHashSet() {
+        this(16);
+    }
+
+    /**
+     * Creates a new empty set, sized for the number of values specified.
+     *
+     * @param expectedSize
+     *            the expected number of values
+     */
+    public LongHashSet(final int expectedSize) {
+        Preconditions.checkArgument(expectedSize >= 0, "Invalid expected size %s", expectedSize);
+        this.table = new long[LongHashing.capacityFor(expectedSize)];
+        this.size = 0;
+        this.hasZero = false;
+    }
+
+    /**
+     * Returns the number of values in the set.
+     *
+     * @return the set size
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Returns true if the set is empty.
+     *
+     * @return true if the set is empty
+     */
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    /**
+     * Checks whether the value specified is in the set.
+     *
+     * @param value
+     *            the value to check
+     * @return true if the value is in the set
+     */
+    public boolean contains(final long value) {
+        if (value == EMPTY) {
+            return this.hasZero;
+        }
+        final int mask = this.table.length - 1;
+        for (int i = LongHashing.hash(value) & mask;; i = i + 1 & mask) {
+            final long v = this.table[i];
+            if (v == value) {
+                return true;
+            } else if (v == EMPTY) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Adds the value specified to the set, if not already there.
+     *
+     * @param value
+     *            the value to add
+     * @return true if the value was added, false if it was already in the set
+     */
+    public boolean add(final long value) {
+        if (value == EMPTY) {
+            if (this.hasZero) {
+                return false;
+            }
+            this.hasZero = true;
+            ++this.size;
+            return true;
+        }
+        final int mask = this.table.length - 1;
+        for (int i = LongHashing.hash(value) & mask;; i = i + 1 & mask) {
+            final long v = this.table[i];
+            if (v == value) {
+                return false;
+            } else if (v == EMPTY) {
+                this.table[i] = value;
+                if (++this.size > LongHashing.maxSizeFor(this.table.length)) {
+                    rehash(this.table.length * 2);
+                }
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Removes all the values in the set.
+     */
+    public void clear() {
+        Arrays.fill(this.table, EMPTY);
+        this.size = 0;
+        this.hasZero = false;
+    }
+
+    /**
+     * Calls the consumer specified for each value in the set, in no particular order.
+     *
+     * @param consumer
+     *            the consumer to call
+     */
+    public void forEach(final LongConsumer consumer) {
+        if (this.hasZero) {
+            consumer.accept(EMPTY);
+        }
+        for (final long value : this.table) {
+            if (value != EMPTY) {
+                consumer.accept(value);
+            }
+        }
+    }
+
+    /**
+     * Returns an array with all the values in the set, in no particular order.
+     *
+     * @return a new array with the set values
+     */
+    public long[] toArray() {
+        final long[] result = new long[this.size];
+        int index = 0;
+        if (this.hasZero) {
+            result[index++] = EMPTY;
+        }
+        for (final long value : this.table) {
+            if (value != EMPTY) {
+                result[index++] = value;
+            }
+        }
+        return result;
+    }
+
+    private void rehash(final int capacity) {
+        final long[] oldTable = this.table;
+        this.table = new long[capacity];
+        final int mask = capacity - 1;
+        for (final long value : oldTable) {
+            if (value != EMPTY) {
+                int i = LongHashing.hash(value) & mask;
+                while (this.table[i] != EMPTY) {
+                    i = i + 1 & mask;
+                }
+                this.table[i] = value;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "(" + this.size + " values)";
+    }
+
+}
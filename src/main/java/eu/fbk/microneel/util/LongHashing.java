@@ -0,0 +1,32 @@
+package eu.fbk.microneel.util;
+
+/**
+ * Hashing and sizing helpers shared by {@link LongHashSet}, {@link LongHashMap} and
+ * {@link LongLongHashMap}.
+ */
+final class LongHashing {
+
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    private LongHashing() {
+    }
+
+    static int hash(final long value) {
+        long h = value * 0x9E3779B97F4A7C15L; // Fibonacci hashing, spreads sequential IDs
+        h ^= h >>> 32;
+        return (int) (h ^ h >>> 16);
+    }
+
+    static int capacityFor(final int expectedSize) {
+        int capacity = 16;
+        while (capacity < MAX_CAPACITY && maxSizeFor(capacity) < expectedSize) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    static int maxSizeFor(final int capacity) {
+        return capacity - (capacity >>> 2); // load factor 0.75
+    }
+
+}
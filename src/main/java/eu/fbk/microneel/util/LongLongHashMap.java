@@ -0,0 +1,189 @@
+package eu.fbk.microneel.util;
+
+import java.util.Arrays;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A map from primitive {@code long} keys to primitive {@code long} values, based on an
+ * open-addressing hash table.
+ * <p>
+ * Keys and values are stored in two parallel {@code long} arrays using linear probing, so that,
+ * differently from a {@code LongHashMap<Long>}, no boxed value is allocated for each mapping.
+ * Removal is not supported, as not needed for the intended usage of indexing file pointers by ID.
+ * The map is not thread safe.
+ * </p>
+ */
+public final class LongLongHashMap {
+
+    private static final long EMPTY = 0L; // the value of the zero key is stored separately
+
+    private long[] keys;
+
+    private long[] values;
+
+    private int size;
+
+    private boolean hasZeroKey;
+
+    private long zeroValue;
+
+    /**
+     * Creates a new empty map.
+     */
+    public LongLongHashMap() {
+        this(16);
+    }
+
+    /**
+     * Creates a new empty map, sized for the number of mappings specified.
+     *
+     * @param expectedSize
+     *            the expected number of mappings
+     */
+    public LongLongHashMap(final int expectedSize) {
+        Preconditions.checkArgument(expectedSize >= 0, "Invalid expected size %s", expectedSize);
+        final int capacity = LongHashing.capacityFor(expectedSize);
+        this.keys = new long[capacity];
+        this.values = new long[capacity];
+        this.size = 0;
+        this.hasZeroKey = false;
+        this.zeroValue = 0L;
+    }
+
+    /**
+     * Returns the number of mappings in the map.
+     *
+     * @return the map size
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Returns true if the map is empty.
+     *
+     * @return true if the map is empty
+     */
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    /**
+     * Returns the value associated to the key specified, or the default value specified if the
+     * key is not in the map.
+     *
+     * @param key
+     *            the key
+     * @param defaultValue
+     *            the value to return if the key is not in the map
+     * @return the associated value, or the default value if missing
+     */
+    public long get(final long key, final long defaultValue) {
+        if (key == EMPTY) {
+            return this.hasZeroKey ? this.zeroValue : defaultValue;
+        }
+        final int mask = this.keys.length - 1;
+        for (int i = LongHashing.hash(key) & mask;; i = i + 1 & mask) {
+            final long k = this.keys[i];
+            if (k == key) {
+                return this.values[i];
+            } else if (k == EMPTY) {
+                return defaultValue;
+            }
+        }
+    }
+
+    /**
+     * Checks whether the key specified is in the map.
+     *
+     * @param key
+     *            the key
+     * @return true if the key is in the map
+     */
+    public boolean containsKey(final long key) {
+        if (key == EMPTY) {
+            return this.hasZeroKey;
+        }
+        final int mask = this.keys.length - 1;
+        for (int i = LongHashing.hash(key) & mask;; i = i + 1 & mask) {
+            final long k = this.keys[i];
+            if (k == key) {
+                return true;
+            } else if (k == EMPTY) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Associates the value specified to the key specified, replacing any previous value.
+     *
+     * @param key
+     *            the key
+     * @param value
+     *            the value
+     * @return true if the key was not in the map
+     */
+    public boolean put(final long key, final long value) {
+        if (key == EMPTY) {
+            final boolean added = !this.hasZeroKey;
+            this.hasZeroKey = true;
+            this.zeroValue = value;
+            if (added) {
+                ++this.size;
+            }
+            return added;
+        }
+        final int mask = this.keys.length - 1;
+        for (int i = LongHashing.hash(key) & mask;; i = i + 1 & mask) {
+            final long k = this.keys[i];
+            if (k == key) {
+                this.values[i] = value;
+                return false;
+            } else if (k == EMPTY) {
+                this.keys[i] = key;
+                this.values[i] = value;
+                if (++this.size > LongHashing.maxSizeFor(this.keys.length)) {
+                    rehash(this.keys.length * 2);
+                }
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Removes all the mappings in the map.
+     */
+    public void clear() {
+        Arrays.fill(this.keys, EMPTY);
+        this.size = 0;
+        this.hasZeroKey = false;
+        this.zeroValue = 0L;
+    }
+
+    private void rehash(final int capacity) {
+        final long[] oldKeys = this.keys;
+        final long[] oldValues = this.values;
+        this.keys = new long[capacity];
+        this.values = new long[capacity];
+        final int mask = capacity - 1;
+        for (int j = 0; j < oldKeys.length; ++j) {
+            final long key = oldKeys[j];
+            if (key != EMPTY) {
+                int i = LongHashing.hash(key) & mask;
+                while (this.keys[i] != EMPTY) {
+                    i = i + 1 & mask;
+                }
+                this.keys[i] = key;
+                this.values[i] = oldValues[j];
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "(" + this.size + " mappings)";
+    }
+
+}
@@ -0,0 +1,147 @@
+package eu.fbk.microneel.util;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A bounded, thread-safe pool for canonicalizing repeated strings.
+ * <p>
+ * The pool is a fixed-size, direct-mapped table of strings indexed by hash code. Method
+ * {@link #intern(String)} returns the pooled string equal to the one supplied, if any, otherwise
+ * stores the supplied string in its slot, replacing the previous one. Memory occupation is thus
+ * bounded by the number of slots, frequent strings tend to stay pooled, and no lock is needed,
+ * as concurrent updates to a slot at most cause a string not to be shared. The pool keeps track of
+ * the lookups performed and of the memory saved by returning pooled strings, whose copies can be
+ * garbage collected; the latter is estimated assuming a 64 bit JVM with compressed pointers,
+ * where a string takes 40 bytes plus 2 bytes per character.
+ * </p>
+ * <p>
+ * A default pool shared by {@link eu.fbk.microneel.Post} and the enrichers is provided by
+ * {@link #getDefault()}; its size can be configured via system property
+ * {@code microneel.stringpool.size}.
+ * </p>
+ */
+public final class StringPool {
+
+    private static final int STRING_OVERHEAD = 40;
+
+    private static final StringPool DEFAULT = new StringPool(
+            Integer.getInteger("microneel.stringpool.size", 1 << 16));
+
+    private final AtomicReferenceArray<String> table;
+
+    private final int mask;
+
+    private final LongAdder lookups;
+
+    private final LongAdder hits;
+
+    private final LongAdder savedBytes;
+
+    /**
+     * Creates a new pool with the number of slots specified, rounded up to a power of two.
+     *
+     * @param size
+     *            the number of slots, i.e., the maximum number of strings pooled
+     */
+    public StringPool(final int size) {
+        Preconditions.checkArgument(size > 0 && size <= 1 << 30, "Invalid size %s", size);
+        int capacity = 1;
+        while (capacity < size) {
+            capacity <<= 1;
+        }
+        this.table = new AtomicReferenceArray<>(capacity);
+        this.mask = capacity - 1;
+        this.lookups = new LongAdder();
+        this.hits = new LongAdder();
+        this.savedBytes = new LongAdder();
+    }
+
+    /**
+     * Returns the default pool, shared by all the components of the application.
+     *
+     * @return the default pool
+     */
+    public static StringPool getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Returns a canonical instance of the string specified.
+     *
+     * @param string
+     *            the string to canonicalize, possibly null
+     * @return the pooled string equal to the supplied one, or the supplied string itself if not
+     *         pooled (null if null was supplied)
+     */
+    @Nullable
+    public String intern(@Nullable final String string) {
+        if (string == null || string.isEmpty()) {
+            return string;
+        }
+        final int hash = string.hashCode();
+        final int index = (hash ^ hash >>> 16) & this.mask;
+        final String pooled = this.table.get(index);
+        this.lookups.increment();
+        if (pooled == string) {
+            this.hits.increment();
+            return pooled;
+        } else if (pooled != null && pooled.equals(string)) {
+            this.hits.increment();
+            this.savedBytes.add(STRING_OVERHEAD + 2 * string.length());
+            return pooled;
+        }
+        this.table.lazySet(index, string);
+        return string;
+    }
+
+    /**
+     * Returns the number of slots of this pool, i.e., the maximum number of strings pooled.
+     *
+     * @return the number of slots
+     */
+    public int getSize() {
+        return this.table.length();
+    }
+
+    /**
+     * Returns the number of lookups performed on this pool.
+     *
+     * @return the number of lookups
+     */
+    public long getLookups() {
+        return this.lookups.sum();
+    }
+
+    /**
+     * Returns the number of lookups that returned a pooled string.
+     *
+     * @return the number of hits
+     */
+    public long getHits() {
+        return this.hits.sum();
+    }
+
+    /**
+     * Returns an estimate of the memory saved by sharing pooled strings, in bytes.
+     *
+     * @return the estimated number of bytes saved
+     */
+    public long getSavedBytes() {
+        return this.savedBytes.sum();
+    }
+
+    @Override
+    public String toString() {
+        final long lookups = getLookups();
+        final long hits = getHits();
+        return String.format("%s(%d slots, %d lookups, %d hits (%.1f%%), ~%d KB saved)",
+                getClass().getSimpleName(), getSize(), lookups, hits,
+                lookups == 0 ? 0.0 : 100.0 * hits / lookups, getSavedBytes() / 1024);
+    }
+
+}
@@ -254,6 +254,53 @@ public final class TwitterBuilder {
                 new Class<?>[] { Twitter.class }, handler);
     }
 
+    /**
+     * Returns the number of accounts (i.e., credentials) available to the {@code Twitter} object
+     * specified. This is also the number of requests that can be usefully issued concurrently to
+     * the object, as each request to a {@code Twitter} object built by this class is served by
+     * any of its accounts having request capacity left.
+     *
+     * @param twitter
+     *            the {@code Twitter} object, possibly built by this class
+     * @return the number of accounts, at least 1
+     */
+    public static int getNumAccounts(final Twitter twitter) {
+        if (Proxy.isProxyClass(twitter.getClass())) {
+            final InvocationHandler handler = Proxy.getInvocationHandler(twitter);
+            if (handler instanceof Handler) {
+                return Math.max(1, ((Handler) handler).numAccounts);
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * Estimates the time needed to perform the number of requests specified via a method of a
+     * {@code Twitter} object built by this class, based on the rate limits of the corresponding
+     * endpoint (see {@code TwitterBuilder.tsv}) and on the requests already performed. Requests
+     * on different endpoints are rate limited independently, so their times do not add up.
+     *
+     * @param twitter
+     *            the {@code Twitter} object, possibly built by this class
+     * @param method
+     *            the name of the {@code Twitter} method, e.g., {@code lookup}
+     * @param numRequests
+     *            the number of requests
+     * @return the estimated time in milliseconds, or -1 if unknown (object not built by this
+     *         class)
+     */
+    public static long estimateTime(final Twitter twitter, final String method,
+            final long numRequests) {
+        if (Proxy.isProxyClass(twitter.getClass())) {
+            final InvocationHandler handler = Proxy.getInvocationHandler(twitter);
+            if (handler instanceof Handler) {
+                final Bucket bucket = ((Handler) handler).buckets.get(method);
+                return bucket == null ? -1L : bucket.estimateTime(numRequests);
+            }
+        }
+        return -1L;
+    }
+
     private static String describe(final Twitter twitter) {
         final Configuration c = twitter.getConfiguration();
         return describe(c.isApplicationOnlyAuthEnabled()
@@ -278,6 +325,8 @@ public final class TwitterBuilder {
 
         private final Map<String, Bucket> buckets;
 
+        private final int numAccounts;
+
         private final int maxConsecutiveExceptions;
 
         private long consecutiveExceptionsDelay;
@@ -288,6 +337,7 @@ public final class TwitterBuilder {
                 final int maxConsecutiveExceptions, final int userRequestLimit,
                 final int appRequestLimit) {
 
+            this.numAccounts = wrappedTwitters.size();
             this.maxConsecutiveExceptions = maxConsecutiveExceptions;
             this.consecutiveExceptionsDelay = CONSECUTIVE_EXCEPTION_MIN_DELAY;
             this.consecutiveExceptions = 0;
@@ -532,6 +582,29 @@ public final class TwitterBuilder {
             return token.twitter;
         }
 
+        synchronized long estimateTime(final long numRequests) {
+
+            // Sort the timestamps of the tokens, i.e., when the next requests can be performed
+            final long[] timestamps = new long[this.queue.size()];
+            int index = 0;
+            for (final Token token : this.queue) {
+                timestamps[index++] = token.ts;
+            }
+            Arrays.sort(timestamps);
+
+            // Each token is reused after a window: find the token of the last request and the
+            // number of windows to wait before using it
+            if (numRequests <= 0) {
+                return 0L;
+            } else if (timestamps.length == 0) {
+                return -1L;
+            }
+            final long windows = (numRequests - 1) / timestamps.length;
+            final long ts = timestamps[(int) ((numRequests - 1) % timestamps.length)];
+            return Math.max(0L, ts - System.currentTimeMillis())
+                    + windows * REQUEST_LIMIT_WINDOW_LENGTH;
+        }
+
         synchronized void shift(final long delay) {
             final List<Token> oldTokens = Lists.newArrayList(this.queue);
             this.queue.clear();
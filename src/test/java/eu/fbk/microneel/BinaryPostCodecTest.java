@@ -0,0 +1,125 @@
+package eu.fbk.microneel;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.collect.ImmutableSet;
+
+import eu.fbk.microneel.Post.Field;
+import eu.fbk.microneel.Post.HashtagAnnotation;
+import eu.fbk.microneel.Post.MentionAnnotation;
+import eu.fbk.microneel.Post.UrlAnnotation;
+
+public class BinaryPostCodecTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        final List<Post> posts = newPosts(1000, false);
+        final Path json = write("posts.json", posts);
+        final Path bin = write("posts.bin", Post.read(json));
+        assertSame(posts, Post.read(bin));
+        Assert.assertNotNull(Post.read(bin).get(1).getDate());
+    }
+
+    @Test
+    public void testParallelRoundTrip() throws IOException {
+        final List<Post> posts = newPosts(1000, false);
+        final Path json = write("posts.json", posts);
+        final Path bin = write("posts.bin", Post.read(json, 4));
+        assertSame(posts, Post.read(bin, 4));
+    }
+
+    @Test
+    public void testCompressedRoundTrip() throws IOException {
+        final List<Post> posts = newPosts(1000, false);
+        assertSame(posts, Post.read(write("posts.bin.gz", posts)));
+    }
+
+    @Test
+    public void testSegments() throws IOException {
+        // Distinct author strings overflow the dictionary, so that further segments are written
+        final List<Post> posts = newPosts(30000, true);
+        assertSame(posts, Post.read(write("posts.bin", posts)));
+    }
+
+    @Test
+    public void testProjections() throws IOException {
+        final List<Post> posts = newPosts(200, false);
+        final Path json = write("posts.json", posts);
+        final Path bin = write("posts.bin", posts);
+        for (final Set<Field> fields : ImmutableSet.of(EnumSet.noneOf(Field.class),
+                EnumSet.of(Field.TEXT), EnumSet.of(Field.AUTHOR, Field.HASHTAGS),
+                EnumSet.of(Field.MENTIONS, Field.URLS), EnumSet.allOf(Field.class))) {
+            final List<Post> expected = Post.read(json, fields);
+            final List<Post> actual = Post.read(bin, fields);
+            assertSame(expected, actual);
+            if (!fields.contains(Field.AUTHOR)) {
+                Assert.assertNull(actual.get(1).getAuthorUsername());
+            }
+            if (!fields.contains(Field.MENTIONS)) {
+                Assert.assertTrue(actual.get(1).getAnnotations(MentionAnnotation.class).isEmpty());
+            }
+        }
+    }
+
+    static List<Post> newPosts(final int size, final boolean distinctAuthors) {
+        final List<Post> posts = new ArrayList<>();
+        for (int i = 0; i < size; ++i) {
+            if (i % 100 == 0) {
+                posts.add(new Post("twitter:" + (i + 1))); // ID only
+                continue;
+            }
+            final String author = "user" + (distinctAuthors ? i : i % 50);
+            final String mention = "user" + (i * 7 % 50);
+            final String hashtag = "tag" + i % 30;
+            final String url = "http://t.co/" + i;
+            final String text = "@" + mention + " \uD83D\uDE00 #" + hashtag + " " + url;
+            final Post post = new Post("twitter:" + (i + 1));
+            post.setDate(new Date(1359497699000L + i * 1000L));
+            post.setText(text);
+            post.setAuthorUsername(author);
+            post.setAuthorFullName("Name of " + author);
+            post.setAuthorDescription(i % 3 == 0 ? null : "Description of " + author);
+            final MentionAnnotation m = post.addAnnotation(MentionAnnotation.class, 0,
+                    1 + mention.length());
+            m.setFullName("Name of " + mention);
+            final int hashtagBegin = text.indexOf('#');
+            final HashtagAnnotation h = post.addAnnotation(HashtagAnnotation.class, hashtagBegin,
+                    hashtagBegin + 1 + hashtag.length());
+            h.setTokenization("tag " + i % 30);
+            final int urlBegin = text.indexOf(url);
+            final UrlAnnotation u = post.addAnnotation(UrlAnnotation.class, urlBegin,
+                    urlBegin + url.length());
+            u.setResolvedUrl(i % 2 == 0 ? null : "http://example.org/" + i);
+            posts.add(post);
+        }
+        return posts;
+    }
+
+    private Path write(final String name, final List<Post> posts) throws IOException {
+        final Path path = this.folder.getRoot().toPath().resolve(name);
+        Post.write(path, posts);
+        return path;
+    }
+
+    private static void assertSame(final List<Post> expected, final List<Post> actual) {
+        Assert.assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); ++i) {
+            Assert.assertEquals(expected.get(i).toString(), actual.get(i).toString());
+        }
+    }
+
+}
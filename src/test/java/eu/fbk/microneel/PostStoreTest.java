@@ -0,0 +1,102 @@
+package eu.fbk.microneel;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import eu.fbk.microneel.Post.Field;
+
+public class PostStoreTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testGet() throws IOException {
+        final List<Post> posts = BinaryPostCodecTest.newPosts(1000, false);
+        try (PostStore store = build(shuffle(posts))) {
+            Assert.assertEquals(posts.size(), store.size());
+            for (final Post post : posts) {
+                final long id = post.getTwitterIdAsLong();
+                Assert.assertTrue(store.contains(id));
+                Assert.assertEquals(post.toString(), store.get(id).toString());
+            }
+            Assert.assertFalse(store.contains(0L));
+            Assert.assertNull(store.get(posts.size() + 1));
+            final Post projected = store.get(2L, EnumSet.of(Field.AUTHOR));
+            Assert.assertEquals(posts.get(1).getAuthorUsername(),
+                    projected.getAuthorUsername());
+            Assert.assertNull(projected.getText());
+        }
+    }
+
+    @Test
+    public void testScan() throws IOException {
+        final List<Post> posts = BinaryPostCodecTest.newPosts(1000, false);
+        try (PostStore store = build(shuffle(posts))) {
+            Assert.assertEquals(toStrings(posts.subList(99, 200)),
+                    toStrings(store.scan(100L, 200L).collect(Collectors.toList())));
+            Assert.assertEquals(toStrings(posts),
+                    toStrings(store.stream().collect(Collectors.toList())));
+            Assert.assertEquals(0L, store.scan(2000L, Long.MAX_VALUE).count());
+            Assert.assertEquals(0L, store.scan(200L, 100L).count());
+        }
+    }
+
+    @Test
+    public void testDuplicates() throws IOException {
+        final List<Post> posts = BinaryPostCodecTest.newPosts(100, false);
+        final List<Post> input = new ArrayList<>(posts);
+        for (int i = 0; i < 10; ++i) {
+            final Post post = new Post(posts.get(i * 10 + 1).getId());
+            post.setText("version " + i);
+            input.add(post);
+        }
+        try (PostStore store = build(input)) {
+            Assert.assertEquals(posts.size(), store.size());
+            for (int i = 0; i < 10; ++i) {
+                final long id = posts.get(i * 10 + 1).getTwitterIdAsLong();
+                Assert.assertEquals("version " + i, store.get(id).getText());
+            }
+            Assert.assertEquals(posts.get(2).toString(), store.get(3L).toString());
+        }
+    }
+
+    @Test
+    public void testSkipNonTwitter() throws IOException {
+        final List<Post> posts = new ArrayList<>(BinaryPostCodecTest.newPosts(10, false));
+        posts.add(new Post("other:1"));
+        try (PostStore store = build(posts)) {
+            Assert.assertEquals(10, store.size());
+        }
+    }
+
+    private PostStore build(final List<Post> posts) throws IOException {
+        final Path input = this.folder.getRoot().toPath().resolve("posts.json");
+        final Path path = this.folder.getRoot().toPath().resolve("posts.store");
+        Post.write(input, posts);
+        PostStore.build(input, path);
+        return PostStore.open(path);
+    }
+
+    private static List<Post> shuffle(final List<Post> posts) {
+        final List<Post> shuffled = new ArrayList<>(posts);
+        Collections.shuffle(shuffled, new Random(1));
+        return shuffled;
+    }
+
+    private static List<String> toStrings(final List<Post> posts) {
+        return posts.stream().map(Post::toString).collect(Collectors.toList());
+    }
+
+}
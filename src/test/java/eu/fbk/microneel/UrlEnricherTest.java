@@ -0,0 +1,243 @@
+package eu.fbk.microneel;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import eu.fbk.microneel.Post.UrlAnnotation;
+
+public class UrlEnricherTest {
+
+    private static final Map<String, AtomicInteger> HITS = new ConcurrentHashMap<>();
+
+    private static final AtomicInteger SLOW_RUNNING = new AtomicInteger();
+
+    private static final AtomicInteger SLOW_MAX_RUNNING = new AtomicInteger();
+
+    private static HttpServer server;
+
+    private static String base;
+
+    @BeforeClass
+    public static void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/", UrlEnricherTest::handle);
+        server.start();
+        base = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @AfterClass
+    public static void stopServer() {
+        server.stop(0);
+    }
+
+    @Before
+    public void resetHits() {
+        HITS.clear();
+        SLOW_RUNNING.set(0);
+        SLOW_MAX_RUNNING.set(0);
+    }
+
+    @Test
+    public void testRedirectChain() throws Throwable {
+        final UrlAnnotation a = resolve(newEnricher(5, 65536), "/redirect/2");
+        Assert.assertEquals(base + "/page", a.getResolvedUrl());
+        Assert.assertEquals("Page & title", a.getTitle());
+        Assert.assertEquals(1, HITS.get("/redirect/1").get());
+    }
+
+    @Test
+    public void testSizeCap() throws Throwable {
+        final UrlAnnotation a = resolve(newEnricher(5, 4096), "/big");
+        Assert.assertEquals(base + "/big", a.getResolvedUrl());
+        Assert.assertNull(a.getTitle());
+        Assert.assertEquals("Big", resolve(newEnricher(5, 65536), "/big").getTitle());
+    }
+
+    @Test
+    public void testDeduplication() throws Throwable {
+        final Enricher enricher = newEnricher(5, 65536);
+        try {
+            final List<Post> posts = new ArrayList<>();
+            for (int i = 0; i < 50; ++i) {
+                posts.add(newPost(i, base + "/redirect/1"));
+            }
+            enricher.enrich(posts);
+            enricher.enrich(Collections.singleton(newPost(50, base + "/redirect/1")));
+            for (final Post post : posts) {
+                Assert.assertEquals(base + "/page", getAnnotation(post).getResolvedUrl());
+            }
+            Assert.assertEquals(1, HITS.get("/redirect/1").get());
+            Assert.assertEquals(1, HITS.get("/page").get());
+        } finally {
+            enricher.close();
+        }
+    }
+
+    @Test
+    public void testNotFound() throws Throwable {
+        final UrlAnnotation a = resolve(newEnricher(5, 65536), "/missing");
+        Assert.assertEquals(base + "/missing", a.getResolvedUrl());
+        Assert.assertNull(a.getTitle());
+    }
+
+    @Test
+    public void testRedirectLoop() throws Throwable {
+        final UrlAnnotation a = resolve(newEnricher(3, 65536), "/loop");
+        Assert.assertNull(a.getResolvedUrl());
+        Assert.assertNull(a.getTitle());
+        Assert.assertEquals(4, HITS.get("/loop").get());
+    }
+
+    @Test
+    public void testCharset() throws Throwable {
+        final String title = "Caf\u00E9 \u263A";
+        Assert.assertEquals(title, resolve(newEnricher(5, 65536), "/latin1").getTitle());
+        Assert.assertEquals(title, resolve(newEnricher(5, 65536), "/meta").getTitle());
+    }
+
+    @Test
+    public void testMaxHostConnections() throws Throwable {
+        final Enricher enricher = newEnricher(5, 65536);
+        try {
+            final List<Post> posts = new ArrayList<>();
+            for (int i = 0; i < 10; ++i) {
+                posts.add(newPost(i, base + "/slow/" + i));
+            }
+            enricher.enrich(posts);
+            for (int i = 0; i < 10; ++i) {
+                Assert.assertEquals("Slow", getAnnotation(posts.get(i)).getTitle());
+            }
+            Assert.assertTrue(SLOW_MAX_RUNNING.get() >= 1);
+            Assert.assertTrue(SLOW_MAX_RUNNING.get() <= 2);
+        } finally {
+            enricher.close();
+        }
+    }
+
+    @Test
+    public void testInvalidPort() throws Throwable {
+        final Enricher enricher = newEnricher(5, 65536);
+        try {
+            final String url = "http://127.0.0.1:99999/x";
+            final Post post = newPost(0, url);
+            enricher.enrich(Collections.singleton(post));
+            Assert.assertNull(getAnnotation(post).getTitle());
+            final Post other = newPost(1, base + "/page");
+            enricher.enrich(Collections.singleton(other));
+            Assert.assertEquals("Page & title", getAnnotation(other).getTitle());
+        } finally {
+            enricher.close();
+        }
+    }
+
+    private static Enricher newEnricher(final int maxRedirects, final int maxBytes)
+            throws IOException {
+        final Properties properties = new Properties();
+        properties.setProperty("enricher.type", "urls");
+        properties.setProperty("enricher.urls.maxRedirects", Integer.toString(maxRedirects));
+        properties.setProperty("enricher.urls.maxBytes", Integer.toString(maxBytes));
+        properties.setProperty("enricher.urls.maxHostConnections", "2");
+        return Enricher.create(properties, "enricher");
+    }
+
+    private static Post newPost(final int id, final String url) {
+        final Post post = new Post("twitter:" + id);
+        post.setText("see " + url);
+        post.addAnnotation(UrlAnnotation.class, 4, 4 + url.length());
+        return post;
+    }
+
+    private static UrlAnnotation getAnnotation(final Post post) {
+        return post.getAnnotations(UrlAnnotation.class).get(0);
+    }
+
+    private static UrlAnnotation resolve(final Enricher enricher, final String path)
+            throws Throwable {
+        try {
+            final Post post = newPost(0, base + path);
+            enricher.enrich(Collections.singleton(post));
+            return getAnnotation(post);
+        } finally {
+            enricher.close();
+        }
+    }
+
+    private static void handle(final HttpExchange exchange) throws IOException {
+        final String path = exchange.getRequestURI().getPath();
+        HITS.computeIfAbsent(path, p -> new AtomicInteger()).incrementAndGet();
+        int code = 200;
+        String type = "text/html; charset=UTF-8";
+        byte[] body = new byte[0];
+        if (path.startsWith("/slow/")) {
+            final int running = SLOW_RUNNING.incrementAndGet();
+            SLOW_MAX_RUNNING.accumulateAndGet(running, Math::max);
+            try {
+                Thread.sleep(50);
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } finally {
+                SLOW_RUNNING.decrementAndGet();
+            }
+            body = utf8("<title>Slow</title>");
+        } else if (path.startsWith("/redirect/")) {
+            final int n = Integer.parseInt(path.substring("/redirect/".length()));
+            code = 301;
+            exchange.getResponseHeaders().add("Location",
+                    n > 1 ? base + "/redirect/" + (n - 1) : "/page");
+        } else if (path.equals("/loop")) {
+            code = 302;
+            exchange.getResponseHeaders().add("Location", "/loop");
+        } else if (path.equals("/page")) {
+            body = utf8("<html><head><TITLE>\n Page &amp; title </TITLE></head></html>");
+        } else if (path.equals("/big")) {
+            final StringBuilder builder = new StringBuilder("<html><head>");
+            for (int i = 0; i < 1000; ++i) {
+                builder.append("<meta name=\"x\" content=\"padding\">\n");
+            }
+            body = utf8(builder.append("<title>Big</title></head></html>").toString());
+        } else if (path.equals("/latin1")) {
+            type = "text/html; charset=ISO-8859-1";
+            body = "<title>Caf\u00E9 &#x263A;</title>".getBytes(StandardCharsets.ISO_8859_1);
+        } else if (path.equals("/meta")) {
+            type = "text/html";
+            body = ("<html><head><meta charset=\"ISO-8859-1\">"
+                    + "<title>Caf\u00E9 &#9786;</title>").getBytes(StandardCharsets.ISO_8859_1);
+        } else {
+            code = 404;
+            body = utf8("<title>Not found</title>");
+        }
+        exchange.getResponseHeaders().add("Content-Type", type);
+        exchange.sendResponseHeaders(code, body.length == 0 ? -1 : body.length);
+        if (body.length > 0) {
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+        exchange.close();
+    }
+
+    private static byte[] utf8(final String string) {
+        return string.getBytes(StandardCharsets.UTF_8);
+    }
+
+}